@@ -0,0 +1,90 @@
+package sim.cda.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sim.cda.AgentValues;
+import sim.cda.CovarianceAccumulator;
+import sim.cda.MarketConfig;
+import sim.cda.Sample;
+
+/**
+ * Adding the fixture agents to the Sigma and sigma sums of
+ * CalculateCoefficients, as the scalar and the vector accumulators do it.
+ * Time per sample.
+ *
+ * @author Augie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class CovarianceAccumulationBenchmark {
+
+    @Param({"scalar", "vector"})
+    public String accumulator;
+    private MarketConfig market;
+    private List<Sample> samples;
+    private double[] avgNormalizedUnitValue;
+    private double avgPayoff;
+    private CovarianceAccumulator covariance;
+
+    @Setup
+    public void setup() throws Exception {
+        market = MarketConfig.get();
+        samples = Fixtures.samples();
+
+        // Averages over the fixtures stand in for the earlier stages' output
+        avgNormalizedUnitValue = new double[market.units()];
+        int agents = 0;
+        for (Sample sample : samples) {
+            for (int i = 0; i < sample.agentCount(); i++) {
+                AgentValues values = AgentValues.get(market.units(), market.vMin(), market.vMax());
+                values.load(sample, i);
+                for (int u = 0; u < market.units(); u++) {
+                    avgNormalizedUnitValue[u] += values.normalized(u);
+                }
+                avgPayoff += sample.agentScore(i);
+                agents++;
+            }
+        }
+        for (int u = 0; u < market.units(); u++) {
+            avgNormalizedUnitValue[u] /= (double) agents;
+        }
+        avgPayoff /= (double) agents;
+
+        if (accumulator.equals("vector")) {
+            covariance = CovarianceAccumulator.createVector(market.units());
+        } else {
+            covariance = new CovarianceAccumulator(market.units());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.COUNT)
+    public CovarianceAccumulator add() {
+        for (Sample sample : samples) {
+            for (int i = 0; i < sample.agentCount(); i++) {
+                AgentValues values = AgentValues.get(market.units(), market.vMin(), market.vMax());
+                values.load(sample, i);
+                double[] centered = values.centered(avgNormalizedUnitValue);
+                double[] centeredNormalized = values.centeredNormalized(avgNormalizedUnitValue);
+                covariance.add(centered, centeredNormalized, sample.agentScore(i) - avgPayoff);
+            }
+        }
+        return covariance;
+    }
+}
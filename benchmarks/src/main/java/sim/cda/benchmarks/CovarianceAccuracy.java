@@ -0,0 +1,94 @@
+package sim.cda.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Random;
+import sim.cda.CovarianceAccumulator;
+
+/**
+ * The accuracy side of CovarianceAccumulationBenchmark: sums random agents
+ * with the scalar and vector CovarianceAccumulator, checks that they give the
+ * same sums and compares the error of the sigma data against an exact
+ * BigDecimal sum with that of summing agent by agent without compensation.
+ * Run with java --add-modules jdk.incubator.vector -cp benchmarks.jar
+ * sim.cda.benchmarks.CovarianceAccuracy [agents] to include the vector
+ * version.
+ *
+ * @author Augie
+ */
+public class CovarianceAccuracy {
+
+    public static final int UNITS = 10;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            throw new Exception("Expecting 1 arg: [agents]");
+        }
+        int agents = Integer.valueOf(args[0]);
+
+        // Unit values and payoffs in the ranges of the real samples
+        Random random = new Random(0);
+        double[] x = new double[agents * UNITS];
+        double[] y = new double[agents * UNITS];
+        double[] w = new double[agents];
+        for (int a = 0; a < agents; a++) {
+            for (int u = 0; u < UNITS; u++) {
+                x[a * UNITS + u] = 61 + random.nextInt(200) - 100.5;
+                y[a * UNITS + u] = random.nextInt(200) - 100.5;
+            }
+            w[a] = random.nextGaussian() * 50;
+        }
+
+        CovarianceAccumulator scalar = new CovarianceAccumulator(UNITS);
+        add(scalar, x, y, w);
+        System.out.println("error: " + maxError(scalar.crossProducts(), y, w)
+                + ", uncompensated: " + maxError(uncompensated(y, w), y, w));
+        CovarianceAccumulator vector = CovarianceAccumulator.createVector(UNITS);
+        if (vector == null) {
+            System.out.println("vector: not available");
+            return;
+        }
+        add(vector, x, y, w);
+        boolean same = Arrays.deepEquals(scalar.outerProducts(), vector.outerProducts())
+                && Arrays.equals(scalar.crossProducts(), vector.crossProducts());
+        System.out.println("vector (" + vector.vectorBitSize() + " bits) same sums: " + same);
+    }
+
+    private static void add(CovarianceAccumulator accumulator, double[] x, double[] y, double[] w) {
+        double[] xa = new double[UNITS];
+        double[] ya = new double[UNITS];
+        for (int a = 0; a < w.length; a++) {
+            System.arraycopy(x, a * UNITS, xa, 0, UNITS);
+            System.arraycopy(y, a * UNITS, ya, 0, UNITS);
+            accumulator.add(xa, ya, w[a]);
+        }
+    }
+
+    /**
+     * Sigma data summed agent by agent.
+     */
+    private static double[] uncompensated(double[] y, double[] w) {
+        double[] sums = new double[UNITS];
+        for (int a = 0; a < w.length; a++) {
+            for (int u = 0; u < UNITS; u++) {
+                sums[u] += w[a] * y[a * UNITS + u];
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Largest relative difference from the exact sigma data.
+     */
+    private static double maxError(double[] sums, double[] y, double[] w) {
+        double max = 0;
+        for (int u = 0; u < UNITS; u++) {
+            BigDecimal exact = BigDecimal.ZERO;
+            for (int a = 0; a < w.length; a++) {
+                exact = exact.add(new BigDecimal(w[a]).multiply(new BigDecimal(y[a * UNITS + u])));
+            }
+            max = Math.max(max, Math.abs(new BigDecimal(sums[u]).subtract(exact).doubleValue() / exact.doubleValue()));
+        }
+        return max;
+    }
+}
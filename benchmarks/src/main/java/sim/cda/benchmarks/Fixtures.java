@@ -0,0 +1,62 @@
+package sim.cda.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
+import sim.cda.Sample;
+import sim.cda.SampleData;
+import sim.cda.SampleReader;
+
+/**
+ * The checked-in fixture samples, alloc.xml files of the 16-agent market
+ * listed in fixtures/index.txt. Every benchmark runs over the same COUNT
+ * samples, so results stay comparable from one change to the next.
+ *
+ * @author Augie
+ */
+public class Fixtures {
+
+    public static final String DIRECTORY = "fixtures/";
+    public static final int COUNT = 16;
+
+    /**
+     * The raw XML of each fixture.
+     */
+    public static List<byte[]> xml() throws Exception {
+        List<String> names = IOUtils.readLines(resource("index.txt"), "UTF-8");
+        List<byte[]> xml = new ArrayList<byte[]>();
+        for (String name : names) {
+            if (!name.trim().isEmpty()) {
+                xml.add(IOUtils.toByteArray(resource(name.trim())));
+            }
+        }
+        if (xml.size() != COUNT) {
+            throw new Exception("Expecting " + COUNT + " fixtures, found " + xml.size());
+        }
+        return xml;
+    }
+
+    /**
+     * Each fixture, parsed.
+     */
+    public static List<Sample> samples() throws Exception {
+        SampleReader reader = new SampleReader();
+        List<Sample> samples = new ArrayList<Sample>();
+        for (byte[] bytes : xml()) {
+            SampleData sample = new SampleData();
+            reader.read(new ByteArrayInputStream(bytes), sample);
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    private static InputStream resource(String name) throws Exception {
+        InputStream in = Fixtures.class.getClassLoader().getResourceAsStream(DIRECTORY + name);
+        if (in == null) {
+            throw new Exception("Missing fixture " + DIRECTORY + name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,68 @@
+package sim.cda.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import nu.xom.Builder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sim.cda.SampleData;
+import sim.cda.SampleReader;
+
+/**
+ * Parsing an alloc.xml: building the XOM document, as the stages first did,
+ * against the StAX SampleReader they use now. Time per sample.
+ *
+ * @author Augie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+// XOM 1.2.7 reaches into the JDK's own Xerces, which takes exporting from
+//  Java 9 on; a Java 8 JVM doesn't know the flags and is told to skip them
+@Fork(value = 1, jvmArgsAppend = {
+    "-XX:+IgnoreUnrecognizedVMOptions",
+    "--add-exports=java.xml/com.sun.org.apache.xerces.internal.parsers=ALL-UNNAMED",
+    "--add-exports=java.xml/com.sun.org.apache.xerces.internal.util=ALL-UNNAMED"})
+public class ParseBenchmark {
+
+    private List<byte[]> xml;
+    private SampleReader reader;
+    private SampleData sample;
+
+    @Setup
+    public void setup() throws Exception {
+        xml = Fixtures.xml();
+        reader = new SampleReader();
+        sample = new SampleData();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.COUNT)
+    public void xom(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : xml) {
+            blackhole.consume(new Builder().build(new ByteArrayInputStream(bytes)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.COUNT)
+    public void stax(Blackhole blackhole) throws Exception {
+        for (byte[] bytes : xml) {
+            reader.read(new ByteArrayInputStream(bytes), sample);
+            blackhole.consume(sample.agentCount());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package sim.cda.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sim.cda.CalculateAveragePayoffPerStratPerProf;
+import sim.cda.MarketConfig;
+import sim.cda.ParallelSampleScan;
+import sim.cda.ProfileAccumulator;
+import sim.cda.Sample;
+
+/**
+ * The per-sample work of CalculateAveragePayoffPerStratPerProf: the
+ * transactions that count, each agent's payoff and the strategy averages
+ * added to the profile. Time per sample; the accumulator is built once in
+ * setup and added to by every invocation, so its construction isn't timed.
+ *
+ * @author Augie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayoffBenchmark {
+
+    private List<Sample> samples;
+    private ParallelSampleScan.Accumulation accumulation;
+    private ProfileAccumulator accumulator;
+
+    @Setup
+    public void setup() throws Exception {
+        samples = Fixtures.samples();
+        accumulation = CalculateAveragePayoffPerStratPerProf.payoffAccumulation(MarketConfig.get());
+        accumulator = new ProfileAccumulator();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(Fixtures.COUNT)
+    public ProfileAccumulator payoffs() throws Exception {
+        for (Sample sample : samples) {
+            accumulation.accumulate(sample, accumulator);
+        }
+        return accumulator;
+    }
+}
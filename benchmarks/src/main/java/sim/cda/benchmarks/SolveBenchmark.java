@@ -0,0 +1,95 @@
+package sim.cda.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sim.cda.AgentValues;
+import sim.cda.ControlVariateSolver;
+import sim.cda.CovarianceAccumulator;
+import sim.cda.MarketConfig;
+import sim.cda.Sample;
+
+/**
+ * Solving Sigma c = sigma for the control variate coefficients, with Sigma
+ * and sigma built from the fixtures: the LU inverse the stages first used,
+ * the Cholesky solve of ControlVariateSolver, and the same factorization
+ * reused for one right-hand side per strategy.
+ *
+ * @author Augie
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolveBenchmark {
+
+    private double[][] SigmaData;
+    private double[] sigmaData;
+    private double[][] strategySigmaData;
+
+    @Setup
+    public void setup() throws Exception {
+        MarketConfig market = MarketConfig.get();
+        List<Sample> samples = Fixtures.samples();
+        double[] zeros = new double[market.units()];
+        CovarianceAccumulator covariance = new CovarianceAccumulator(market.units());
+        long n = 0;
+        for (Sample sample : samples) {
+            for (int i = 0; i < sample.agentCount(); i++) {
+                AgentValues values = AgentValues.get(market.units(), market.vMin(), market.vMax());
+                values.load(sample, i);
+                covariance.add(values.centered(zeros), values.centeredNormalized(zeros), sample.agentScore(i));
+                n++;
+            }
+        }
+        SigmaData = covariance.outerProducts();
+        sigmaData = covariance.crossProducts();
+        for (int i = 0; i < market.units(); i++) {
+            for (int j = 0; j < market.units(); j++) {
+                SigmaData[i][j] /= (n - 1);
+            }
+            sigmaData[i] /= (n - 1);
+        }
+
+        // Scaled copies of sigma stand in for the per-strategy sides
+        strategySigmaData = new double[market.strategies().length][];
+        for (int s = 0; s < strategySigmaData.length; s++) {
+            strategySigmaData[s] = new double[market.units()];
+            for (int u = 0; u < market.units(); u++) {
+                strategySigmaData[s][u] = sigmaData[u] * (s + 1);
+            }
+        }
+    }
+
+    @Benchmark
+    public RealMatrix luInverse() {
+        RealMatrix Sigma = new Array2DRowRealMatrix(SigmaData);
+        RealMatrix sigma = new Array2DRowRealMatrix(sigmaData);
+        RealMatrix SigmaInverse = new LUDecomposition(Sigma).getSolver().getInverse();
+        return SigmaInverse.multiply(sigma);
+    }
+
+    @Benchmark
+    public double[] cholesky() {
+        return new ControlVariateSolver(SigmaData).solve(sigmaData);
+    }
+
+    @Benchmark
+    public double[][] choleskyPerStrategy() {
+        return new ControlVariateSolver(SigmaData).solve(strategySigmaData);
+    }
+}
@@ -0,0 +1,112 @@
+package sim.cda;
+
+/**
+ * One agent's unit values in reusable primitive buffers: the raw values, the
+ * normalized values (how far each is from the worst possible value, V_MIN
+ * for a buyer and V_MAX for a seller) and, on request, either one less a
+ * vector of averages. Loading the next agent overwrites them. Each thread
+ * gets its own from get().
+ *
+ * @author Augie
+ */
+public class AgentValues {
+
+    private static final ThreadLocal<AgentValues> POOL = new ThreadLocal<AgentValues>();
+    private final int units;
+    private final int vMin;
+    private final int vMax;
+    private final UnitKernels kernels;
+    private final int[] values;
+    private final double[] normalized;
+    private final double[] centered;
+    private final double[] centeredNormalized;
+    private boolean buyer;
+
+    public AgentValues(int units, int vMin, int vMax) {
+        this.units = units;
+        this.vMin = vMin;
+        this.vMax = vMax;
+        kernels = UnitKernels.create(units, vMin, vMax);
+        values = new int[units];
+        normalized = new double[units];
+        centered = new double[units];
+        centeredNormalized = new double[units];
+    }
+
+    /**
+     * This thread's buffers for the given game.
+     */
+    public static AgentValues get(int units, int vMin, int vMax) {
+        AgentValues agentValues = POOL.get();
+        if (agentValues == null || agentValues.units != units || agentValues.vMin != vMin || agentValues.vMax != vMax) {
+            agentValues = new AgentValues(units, vMin, vMax);
+            POOL.set(agentValues);
+        }
+        return agentValues;
+    }
+
+    /**
+     * Reads the values of one of the sample's agents.
+     */
+    public void load(Sample sample, int agent) {
+        int count = sample.valueCount(agent);
+        if (count < units) {
+            throw new IllegalArgumentException("Agent " + sample.agentID(agent) + " has " + count + " values, expecting " + units);
+        }
+        // Buyer values are ordered highest to lowest
+        buyer = sample.agentValue(agent, 0) > sample.agentValue(agent, count - 1);
+        for (int u = 0; u < units; u++) {
+            values[u] = sample.agentValue(agent, u);
+        }
+        kernels.normalize(values, buyer, normalized);
+    }
+
+    public boolean isBuyer() {
+        return buyer;
+    }
+
+    public int value(int unit) {
+        return values[unit];
+    }
+
+    public double normalized(int unit) {
+        return normalized[unit];
+    }
+
+    public int[] values() {
+        return values;
+    }
+
+    public double[] normalized() {
+        return normalized;
+    }
+
+    /**
+     * The kernels for this game.
+     */
+    public UnitKernels kernels() {
+        return kernels;
+    }
+
+    /**
+     * The raw values less the given averages, in a buffer that the next call
+     * overwrites.
+     */
+    public double[] centered(double[] avgs) {
+        for (int u = 0; u < units; u++) {
+            centered[u] = values[u] - avgs[u];
+        }
+        return centered;
+    }
+
+    /**
+     * The normalized values less the given averages, in a buffer that the
+     * next call overwrites.
+     */
+    public double[] centeredNormalized(double[] avgs) {
+        for (int u = 0; u < units; u++) {
+            centeredNormalized[u] = normalized[u] - avgs[u];
+        }
+        return centeredNormalized;
+    }
+}
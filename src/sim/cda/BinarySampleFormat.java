@@ -0,0 +1,194 @@
+package sim.cda;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Fixed-layout binary encoding of a sample, written next to the alloc.xml
+ * copy as sim#_sam#.bin by ConvertSamplesToBinary. The layout is columnar,
+ * every field of the agents and then of the transactions stored together:
+ *
+ *   int     magic
+ *   byte    version
+ *   byte    # strategies S, then S strategy names (modified UTF-8)
+ *   byte    # agents N
+ *   byte    # units U
+ *   short   agent IDs [N]
+ *   byte    strategy ordinals into the table above [N]
+ *   double  scores [N]
+ *   short   values [N * U]
+ *   byte    # repetitions R
+ *   byte    repetition IDs [R]
+ *   short   transaction counts [R]
+ *   then per repetition with T transactions:
+ *   short   buyer IDs [T], seller IDs [T], prices [T]
+ *
+ * @author Augie
+ */
+public class BinarySampleFormat {
+
+    public static final String EXTENSION = ".bin";
+    public static final int MAGIC = 0x43444153;
+    public static final byte VERSION = 1;
+
+    /**
+     * Whether the binary copy is at least as new as its XML sample, so a
+     * sample copied over again is read (and converted) afresh.
+     */
+    public static boolean isCurrent(File binaryFile, File xmlFile) {
+        return binaryFile.exists() && binaryFile.lastModified() >= xmlFile.lastModified();
+    }
+
+    public static void write(Sample sample, File file) throws IOException {
+        FileUtils.writeByteArrayToFile(file, toBytes(sample));
+    }
+
+    public static byte[] toBytes(Sample sample) throws IOException {
+        int agents = sample.agentCount();
+        int units = agents > 0 ? sample.valueCount(0) : 0;
+
+        // Strategy table in order of appearance
+        List<String> strategies = new ArrayList<String>();
+        for (int i = 0; i < agents; i++) {
+            if (!strategies.contains(sample.agentStrategy(i))) {
+                strategies.add(sample.agentStrategy(i));
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        writeUnsignedByte(out, strategies.size(), "Strategy count");
+        for (String strategy : strategies) {
+            out.writeUTF(strategy);
+        }
+        writeUnsignedByte(out, agents, "Agent count");
+        writeUnsignedByte(out, units, "Unit count");
+        for (int i = 0; i < agents; i++) {
+            writeShort(out, sample.agentID(i), "Agent ID");
+        }
+        for (int i = 0; i < agents; i++) {
+            // Fits, as the strategy count does
+            out.writeByte(strategies.indexOf(sample.agentStrategy(i)));
+        }
+        for (int i = 0; i < agents; i++) {
+            out.writeDouble(sample.agentScore(i));
+        }
+        for (int i = 0; i < agents; i++) {
+            if (sample.valueCount(i) != units) {
+                throw new IOException("Agent " + sample.agentID(i) + " has " + sample.valueCount(i) + " values, expected " + units);
+            }
+            for (int u = 0; u < units; u++) {
+                writeShort(out, sample.agentValue(i, u), "Unit value");
+            }
+        }
+        writeUnsignedByte(out, sample.repetitionCount(), "Repetition count");
+        for (int r = 0; r < sample.repetitionCount(); r++) {
+            writeUnsignedByte(out, sample.repetitionID(r), "Repetition ID");
+        }
+        for (int r = 0; r < sample.repetitionCount(); r++) {
+            writeUnsignedShort(out, sample.transactionCount(r), "Transaction count");
+        }
+        for (int r = 0; r < sample.repetitionCount(); r++) {
+            for (int t = 0; t < sample.transactionCount(r); t++) {
+                writeShort(out, sample.transactionBuyerID(r, t), "Buyer ID");
+            }
+            for (int t = 0; t < sample.transactionCount(r); t++) {
+                writeShort(out, sample.transactionSellerID(r, t), "Seller ID");
+            }
+            for (int t = 0; t < sample.transactionCount(r); t++) {
+                writeShort(out, sample.transactionPrice(r, t), "Price");
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Every field is checked against its width, so a sample that doesn't fit
+    //  fails to convert rather than reading back as a different one
+
+    private static void writeUnsignedByte(DataOutputStream out, int value, String field) throws IOException {
+        checkRange(value, 0, 0xFF, field);
+        out.writeByte(value);
+    }
+
+    private static void writeUnsignedShort(DataOutputStream out, int value, String field) throws IOException {
+        checkRange(value, 0, 0xFFFF, field);
+        out.writeShort(value);
+    }
+
+    private static void writeShort(DataOutputStream out, int value, String field) throws IOException {
+        checkRange(value, Short.MIN_VALUE, Short.MAX_VALUE, field);
+        out.writeShort(value);
+    }
+
+    private static void checkRange(int value, int min, int max, String field) throws IOException {
+        if (value < min || value > max) {
+            throw new IOException(field + " " + value + " does not fit in a binary sample (" + min + " to " + max + ")");
+        }
+    }
+
+    public static void read(File file, SampleData sample) throws IOException {
+        read(ByteBuffer.wrap(FileUtils.readFileToByteArray(file)), sample);
+    }
+
+    public static void read(ByteBuffer in, SampleData sample) throws IOException {
+        sample.clear();
+        if (in.getInt() != MAGIC) {
+            throw new IOException("Not a binary sample.");
+        }
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary sample version " + version);
+        }
+        String[] strategies = new String[in.get() & 0xFF];
+        for (int i = 0; i < strategies.length; i++) {
+            strategies[i] = readUTF(in);
+        }
+        int agents = in.get() & 0xFF;
+        int units = in.get() & 0xFF;
+        int start = in.position();
+        // Skip from column to column, one agent at a time
+        for (int i = 0; i < agents; i++) {
+            sample.startAgent();
+            sample.setAgentID(in.getShort(start + 2 * i));
+            sample.setAgentStrategy(strategies[in.get(start + 2 * agents + i) & 0xFF]);
+            sample.setAgentScore(in.getDouble(start + 3 * agents + 8 * i));
+            int values = start + 11 * agents + 2 * units * i;
+            for (int u = 0; u < units; u++) {
+                sample.addAgentValue(in.getShort(values + 2 * u));
+            }
+        }
+        in.position(start + 11 * agents + 2 * units * agents);
+        int repetitions = in.get() & 0xFF;
+        start = in.position();
+        int transactions = start + 3 * repetitions;
+        for (int r = 0; r < repetitions; r++) {
+            sample.startRepetition();
+            sample.setRepetitionID(in.get(start + r) & 0xFF);
+            int count = in.getShort(start + repetitions + 2 * r) & 0xFFFF;
+            for (int t = 0; t < count; t++) {
+                sample.startTransaction();
+                sample.setTransactionBuyerID(in.getShort(transactions + 2 * t));
+                sample.setTransactionSellerID(in.getShort(transactions + 2 * (count + t)));
+                sample.setTransactionPrice(in.getShort(transactions + 2 * (2 * count + t)));
+            }
+            transactions += 6 * count;
+        }
+        in.position(transactions);
+    }
+
+    private static String readUTF(ByteBuffer in) throws IOException {
+        // Modified UTF-8 is plain UTF-8 for strategy names
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
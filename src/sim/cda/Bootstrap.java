@@ -0,0 +1,215 @@
+package sim.cda;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Percentile bootstrap confidence intervals, computed from per-sample
+ * summaries rather than the samples themselves. The samples of each profile
+ * are resampled with replacement, the statistic is recomputed for every
+ * replicate, and the interval runs between the (1 - CONFIDENCE) / 2 and
+ * (1 + CONFIDENCE) / 2 quantiles of the replicates.
+ *
+ * The work is spread over the common fork-join pool. Every profile (or
+ * replicate) draws from its own SplittableRandom stream, split off from the
+ * seed in a fixed order before any work starts, so the intervals are the
+ * same for any number of threads. The seed can be set with
+ * -Dsim.cda.bootstrap.seed.
+ *
+ * @author Augie
+ */
+public class Bootstrap {
+
+    public static final double CONFIDENCE = 0.95;
+    public static final String SEED_PROPERTY = "sim.cda.bootstrap.seed";
+    public static final long SEED = 1L;
+    // Profiles or replicates per task
+    public static final int THRESHOLD = 16;
+
+    /**
+     * A statistic of the samples, each counted weights[i] times.
+     */
+    public interface Statistic {
+
+        public double evaluate(int[] weights);
+    }
+
+    /**
+     * Lower and upper bounds indexed by profile and strategy, null for
+     * profiles without samples.
+     */
+    public static class Intervals {
+
+        private final double[][] lower = new double[ProfileKey.COUNT][];
+        private final double[][] upper = new double[ProfileKey.COUNT][];
+
+        public double[][] lower() {
+            return lower;
+        }
+
+        public double[][] upper() {
+            return upper;
+        }
+    }
+
+    public static long seed() {
+        return Long.getLong(SEED_PROPERTY, SEED);
+    }
+
+    /**
+     * Intervals for the average of each strategy's values in each profile,
+     * from the per-sample values kept by the accumulator.
+     */
+    public static Intervals averages(ProfileAccumulator accumulator, int replicates) {
+        int[] profiles = accumulator.profiles();
+        SplittableRandom root = new SplittableRandom(seed());
+        SplittableRandom[] randoms = new SplittableRandom[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            randoms[i] = root.split();
+        }
+        Intervals intervals = new Intervals();
+        ForkJoinPool.commonPool().invoke(new ResampleProfiles(accumulator, replicates, profiles, randoms, intervals, 0, profiles.length));
+        return intervals;
+    }
+
+    /**
+     * The interval of a statistic, resampling the samples within each
+     * stratum (the samples of one profile).
+     */
+    public static double[] interval(int[][] strata, int sampleCount, int replicates, Statistic statistic) {
+        SplittableRandom root = new SplittableRandom(seed());
+        SplittableRandom[] randoms = new SplittableRandom[replicates];
+        for (int r = 0; r < replicates; r++) {
+            randoms[r] = root.split();
+        }
+        double[] values = new double[replicates];
+        ForkJoinPool.commonPool().invoke(new Replicate(strata, sampleCount, statistic, randoms, values, 0, replicates));
+        return percentiles(values);
+    }
+
+    /**
+     * The lower and upper percentile bounds of the replicates, which are
+     * sorted in place.
+     */
+    public static double[] percentiles(double[] replicates) {
+        Arrays.sort(replicates);
+        int lower = (int) Math.floor((1 - CONFIDENCE) / 2 * replicates.length);
+        int upper = (int) Math.ceil((1 + CONFIDENCE) / 2 * replicates.length) - 1;
+        return new double[]{replicates[Math.max(0, lower)], replicates[Math.min(replicates.length - 1, upper)]};
+    }
+
+    private static void resample(ProfileAccumulator accumulator, int replicates, int profile, SplittableRandom random, Intervals intervals) {
+        long key = ProfileKey.key(profile);
+        int strategies = StrategyDictionary.size();
+        double[][] values = new double[strategies][];
+        for (int s = 0; s < strategies; s++) {
+            if (ProfileKey.count(key, s) > 0) {
+                values[s] = accumulator.values(profile, s);
+            }
+        }
+        int n = (int) accumulator.sampleCount(profile);
+        double[][] averages = new double[strategies][replicates];
+        double[] sums = new double[strategies];
+        for (int r = 0; r < replicates; r++) {
+            Arrays.fill(sums, 0);
+            // The same draws for every strategy, so each keeps its sample
+            for (int i = 0; i < n; i++) {
+                int sample = random.nextInt(n);
+                for (int s = 0; s < strategies; s++) {
+                    if (values[s] != null) {
+                        sums[s] += values[s][sample];
+                    }
+                }
+            }
+            for (int s = 0; s < strategies; s++) {
+                averages[s][r] = sums[s] / n;
+            }
+        }
+        intervals.lower[profile] = new double[strategies];
+        intervals.upper[profile] = new double[strategies];
+        for (int s = 0; s < strategies; s++) {
+            if (values[s] != null) {
+                double[] bounds = percentiles(averages[s]);
+                intervals.lower[profile][s] = bounds[0];
+                intervals.upper[profile][s] = bounds[1];
+            }
+        }
+    }
+
+    private static class ResampleProfiles extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final ProfileAccumulator accumulator;
+        private final int replicates;
+        private final int[] profiles;
+        private final SplittableRandom[] randoms;
+        private final Intervals intervals;
+        private final int from;
+        private final int to;
+
+        private ResampleProfiles(ProfileAccumulator accumulator, int replicates, int[] profiles, SplittableRandom[] randoms, Intervals intervals, int from, int to) {
+            this.accumulator = accumulator;
+            this.replicates = replicates;
+            this.profiles = profiles;
+            this.randoms = randoms;
+            this.intervals = intervals;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ResampleProfiles(accumulator, replicates, profiles, randoms, intervals, from, middle),
+                        new ResampleProfiles(accumulator, replicates, profiles, randoms, intervals, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                resample(accumulator, replicates, profiles[i], randoms[i], intervals);
+            }
+        }
+    }
+
+    private static class Replicate extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int[][] strata;
+        private final int sampleCount;
+        private final Statistic statistic;
+        private final SplittableRandom[] randoms;
+        private final double[] values;
+        private final int from;
+        private final int to;
+
+        private Replicate(int[][] strata, int sampleCount, Statistic statistic, SplittableRandom[] randoms, double[] values, int from, int to) {
+            this.strata = strata;
+            this.sampleCount = sampleCount;
+            this.statistic = statistic;
+            this.randoms = randoms;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Replicate(strata, sampleCount, statistic, randoms, values, from, middle),
+                        new Replicate(strata, sampleCount, statistic, randoms, values, middle, to));
+                return;
+            }
+            int[] weights = new int[sampleCount];
+            for (int r = from; r < to; r++) {
+                Arrays.fill(weights, 0);
+                for (int[] stratum : strata) {
+                    for (int i = 0; i < stratum.length; i++) {
+                        weights[stratum[randoms[r].nextInt(stratum.length)]]++;
+                    }
+                }
+                values[r] = statistic.evaluate(weights);
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package sim.cda;
+
+import java.io.File;
+
+/**
+ * Runs every stage of the pipeline from a single scan of the samples
+ * directory. Each sample is parsed once into SampleSummaries and the average
+ * unit values, average payoffs, coefficients, reduced-variance payoff matrix
+ * and variance reduction ratio are all derived from those summaries. The
+ * output files are the same as the ones written by the individual stages,
+ * except that past ParallelSampleScan.THRESHOLD samples the payoff stages
+ * add up their per-profile sums in a different order, so the last digits
+ * can differ.
+ *
+ * @author Augie
+ */
+public class CalculateAllStages {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 6) {
+            throw new Exception("Expecting 6 args: [samples directory] [avg unit vals output file] [avg payoffs output file] [coefficients output file] [output json file] [output plain file]");
+        }
+
+        // The market the samples come from
+        MarketConfig market = MarketConfig.get();
+        int argCount = 0;
+
+        File inDir = new File(args[argCount++]);
+        if (!inDir.exists()) {
+            throw new Exception("Input directory does not exist.");
+        }
+
+        File unitValsFile = new File(args[argCount++]);
+        if (unitValsFile.exists()) {
+            throw new Exception("Unit values file already exists.");
+        }
+
+        File avgPayoffsFile = new File(args[argCount++]);
+        if (avgPayoffsFile.exists()) {
+            throw new Exception("Avg payoffs file already exists.");
+        }
+
+        File coeffFile = new File(args[argCount++]);
+        if (coeffFile.exists()) {
+            throw new Exception("Coefficients file already exists.");
+        }
+
+        File outFile = new File(args[argCount++]);
+        if (outFile.exists()) {
+            throw new Exception("Output file already exists.");
+        }
+
+        File outPlainFile = new File(args[argCount++]);
+        if (outPlainFile.exists()) {
+            throw new Exception("Plain text output file already exists.");
+        }
+
+        // The one and only pass over the samples
+        SampleSummaries summaries = new SampleSummaries(market.agents(), market.reps(), market.units());
+        SampleSource samples = Samples.open(inDir);
+        for (Sample sample : samples) {
+            summaries.add(sample);
+        }
+        int strategyCount = StrategyDictionary.size();
+        long[] profileSampleCounts = new long[ProfileKey.COUNT];
+        for (int p : summaries.profiles()) {
+            profileSampleCounts[p] = summaries.profileSampleCount(p);
+        }
+
+        // One agent's raw and normalized unit values at a time
+        int[] values = new int[market.units()];
+        double[] normalized = new double[market.units()];
+
+        // Average normalized unit values
+        double[] avgNormalizedUnitValue = new double[market.units()];
+        {
+            double[] vSum = new double[market.units()];
+            for (int a = 0; a < summaries.agentCount(); a++) {
+                normalizedValues(market, summaries, a, values, normalized);
+                for (int u = 0; u < market.units(); u++) {
+                    vSum[u] += normalized[u];
+                }
+            }
+            for (int u = 0; u < market.units(); u++) {
+                avgNormalizedUnitValue[u] = vSum[u] / summaries.agentCount();
+            }
+        }
+
+        // Average payoff per strategy per profile, with the std devs of the scores
+        double[][] strategyProfileAvgs = new double[ProfileKey.COUNT][];
+        double[][] strategyProfileStdDevs = new double[ProfileKey.COUNT][];
+        for (int p : summaries.profiles()) {
+            strategyProfileAvgs[p] = new double[strategyCount];
+            strategyProfileStdDevs[p] = new double[strategyCount];
+        }
+        for (int s = 0; s < summaries.sampleCount(); s++) {
+            int p = summaries.sampleProfile(s);
+            double[] payoffs = new double[strategyCount];
+            int[] counts = new int[strategyCount];
+            for (int a = summaries.firstAgent(s); a < summaries.endAgent(s); a++) {
+                payoffs[summaries.agentStrategy(a)] += summaries.agentPayoff(a);
+                counts[summaries.agentStrategy(a)]++;
+            }
+            for (int i = 0; i < strategyCount; i++) {
+                if (counts[i] > 0) {
+                    strategyProfileAvgs[p][i] += payoffs[i] / (double) counts[i];
+                }
+            }
+        }
+        for (int p : summaries.profiles()) {
+            for (int i = 0; i < strategyCount; i++) {
+                strategyProfileAvgs[p][i] /= (double) summaries.profileSampleCount(p);
+            }
+        }
+        for (int s = 0; s < summaries.sampleCount(); s++) {
+            int p = summaries.sampleProfile(s);
+            double[] scores = new double[strategyCount];
+            int[] counts = new int[strategyCount];
+            for (int a = summaries.firstAgent(s); a < summaries.endAgent(s); a++) {
+                scores[summaries.agentStrategy(a)] += summaries.agentScore(a);
+                counts[summaries.agentStrategy(a)]++;
+            }
+            for (int i = 0; i < strategyCount; i++) {
+                if (counts[i] > 0) {
+                    strategyProfileStdDevs[p][i] += Math.pow(scores[i] / (double) counts[i] - strategyProfileAvgs[p][i], 2);
+                }
+            }
+        }
+        for (int p : summaries.profiles()) {
+            for (int i = 0; i < strategyCount; i++) {
+                strategyProfileStdDevs[p][i] = Math.sqrt(strategyProfileStdDevs[p][i] / (double) summaries.profileSampleCount(p));
+            }
+        }
+
+        // Covariance matrix and variance array for the control variates
+        double K = summaries.agentCount();
+        CovarianceAccumulator covariance = CovarianceAccumulator.create(market.units());
+        double[] centered = new double[market.units()];
+        double[] centeredNormalized = new double[market.units()];
+        double[] allPayoffs = new double[summaries.agentCount()];
+        for (int s = 0; s < summaries.sampleCount(); s++) {
+            int p = summaries.sampleProfile(s);
+            for (int a = summaries.firstAgent(s); a < summaries.endAgent(s); a++) {
+                double avgPayoffPerRepetition = summaries.agentPayoff(a);
+                allPayoffs[a] = avgPayoffPerRepetition;
+                double avgPayoffForThisStrategyInThisProfile = strategyProfileAvgs[p][summaries.agentStrategy(a)];
+                normalizedValues(market, summaries, a, values, normalized);
+                for (int u = 0; u < market.units(); u++) {
+                    centered[u] = values[u] - avgNormalizedUnitValue[u];
+                    centeredNormalized[u] = normalized[u] - avgNormalizedUnitValue[u];
+                }
+                covariance.add(centered, centeredNormalized, avgPayoffPerRepetition - avgPayoffForThisStrategyInThisProfile);
+            }
+        }
+        double[][] SigmaData = covariance.outerProducts();
+        double[] sigmaData = covariance.crossProducts();
+        for (int i = 0; i < market.units(); i++) {
+            for (int j = 0; j < market.units(); j++) {
+                SigmaData[i][j] /= (K - 1);
+            }
+        }
+        for (int i = 0; i < market.units(); i++) {
+            sigmaData[i] /= (K - 1);
+        }
+        ControlVariateSolver solver = new ControlVariateSolver(SigmaData);
+        double[] conVarCoeffs = solver.solve(sigmaData);
+
+        // Reduced-variance payoffs
+        double[][] sampleRedVarAvgs = new double[summaries.sampleCount()][];
+        double[][] redVarStrategyProfileAvgs = new double[ProfileKey.COUNT][];
+        double[][] redVarStrategyProfileStdDevs = new double[ProfileKey.COUNT][];
+        for (int p : summaries.profiles()) {
+            redVarStrategyProfileAvgs[p] = new double[strategyCount];
+            redVarStrategyProfileStdDevs[p] = new double[strategyCount];
+        }
+        for (int s = 0; s < summaries.sampleCount(); s++) {
+            int p = summaries.sampleProfile(s);
+            double[] scores = new double[strategyCount];
+            int[] counts = new int[strategyCount];
+            for (int a = summaries.firstAgent(s); a < summaries.endAgent(s); a++) {
+                normalizedValues(market, summaries, a, values, normalized);
+                double reducedVarianceScore = market.kernels().reduce(strategyProfileAvgs[p][summaries.agentStrategy(a)], conVarCoeffs, normalized, avgNormalizedUnitValue);
+                scores[summaries.agentStrategy(a)] += reducedVarianceScore;
+                counts[summaries.agentStrategy(a)]++;
+            }
+            for (int i = 0; i < strategyCount; i++) {
+                if (counts[i] > 0) {
+                    scores[i] /= (double) counts[i];
+                    redVarStrategyProfileAvgs[p][i] += scores[i];
+                }
+            }
+            sampleRedVarAvgs[s] = scores;
+        }
+        for (int p : summaries.profiles()) {
+            for (int i = 0; i < strategyCount; i++) {
+                redVarStrategyProfileAvgs[p][i] /= (double) summaries.profileSampleCount(p);
+            }
+        }
+        for (int s = 0; s < summaries.sampleCount(); s++) {
+            int p = summaries.sampleProfile(s);
+            long key = ProfileKey.key(p);
+            for (int i = 0; i < strategyCount; i++) {
+                if (ProfileKey.count(key, i) > 0) {
+                    redVarStrategyProfileStdDevs[p][i] += Math.pow(sampleRedVarAvgs[s][i] - redVarStrategyProfileAvgs[p][i], 2);
+                }
+            }
+        }
+        for (int p : summaries.profiles()) {
+            for (int i = 0; i < strategyCount; i++) {
+                redVarStrategyProfileStdDevs[p][i] = Math.sqrt(redVarStrategyProfileStdDevs[p][i] / (double) summaries.profileSampleCount(p));
+            }
+        }
+
+        // Variance reduction ratio
+        double numeratorVal = solver.quadraticForm(sigmaData);
+        double var = Utils.VARIANCE.evaluate(allPayoffs);
+        double varRedRatio = ((K - 2) / (K - market.units() - 2)) * (1 - (numeratorVal / var));
+        System.out.println(varRedRatio);
+
+        // Write out the average unit values
+        IntermediateFormat.writeUnitValues(unitValsFile, avgNormalizedUnitValue);
+
+        // Write out the average payoffs
+        IntermediateFormat.writePayoffs(avgPayoffsFile, new PayoffTable(summaries.profiles(), profileSampleCounts, strategyProfileAvgs, strategyProfileStdDevs));
+
+        // Write out the coefficients
+        IntermediateFormat.writeCoefficients(coeffFile, new ControlVariateCoefficients(conVarCoeffs));
+
+        // Write out the game JSON
+        writeGameJson(outFile, summaries.profiles(), profileSampleCounts, redVarStrategyProfileAvgs, redVarStrategyProfileStdDevs);
+
+        // Write out the plain reduced-variance results, as the reduced
+        //  variance stage does: unreduced averages with reduced std devs
+        IntermediateFormat.writePayoffs(outPlainFile, new PayoffTable(summaries.profiles(), profileSampleCounts, strategyProfileAvgs, redVarStrategyProfileStdDevs));
+    }
+
+    /**
+     * Reads an agent's unit values into values and normalizes them into
+     * normalized.
+     */
+    private static void normalizedValues(MarketConfig market, SampleSummaries summaries, int agent, int[] values, double[] normalized) {
+        for (int u = 0; u < market.units(); u++) {
+            values[u] = summaries.agentValue(agent, u);
+        }
+        market.kernels().normalize(values, summaries.isBuyer(agent), normalized);
+    }
+
+    /**
+     * Writes the game JSON with the given payoffs of the given profiles.
+     */
+    static void writeGameJson(File outFile, int[] profiles, long[] sampleCounts, double[][] payoffs, double[][] stdDevs) throws Exception {
+        MarketConfig market = MarketConfig.get();
+        GameJsonWriter out = new GameJsonWriter(outFile);
+        try {
+            out.header("CDA", "CDA-2.11", market.rolesJson());
+            for (int p : profiles) {
+                long key = ProfileKey.key(p);
+                out.startProfile(sampleCounts[p], market.role());
+                for (int i = 0; i < StrategyDictionary.size(); i++) {
+                    if (ProfileKey.count(key, i) > 0) {
+                        out.strategy(StrategyDictionary.name(i), ProfileKey.count(key, i), payoffs[p][i], stdDevs[p][i]);
+                    }
+                }
+                out.endProfile();
+            }
+            out.finish();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package sim.cda;
+
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The control variate coefficients: one global set and, optionally, a set
+ * per strategy and a set per strategy in each profile. get() returns the
+ * most specific set there is, so a strategy or profile with too few agents
+ * to have its own falls back to the coarser one.
+ *
+ * The coefficients file starts with the global coefficients, one per line,
+ * which is all it holds in the global scope. It is followed by a line per
+ * strategy, "strategy [name] [coefficients]", and a line per strategy in each
+ * profile, "profile [profile ID] [name] [coefficients]", separated by tabs.
+ *
+ * @author Augie
+ */
+public class ControlVariateCoefficients {
+
+    public static final String GLOBAL = "global";
+    public static final String STRATEGY = "strategy";
+    public static final String PROFILE = "profile";
+    private final double[] global;
+    // [strategy], null where there is no set of its own
+    private final double[][] strategies;
+    // [profile][strategy]
+    private final double[][][] profiles;
+
+    public ControlVariateCoefficients(double[] global) {
+        this.global = global;
+        strategies = new double[StrategyDictionary.size()][];
+        profiles = new double[ProfileKey.COUNT][][];
+    }
+
+    /**
+     * Whether the scope is one of GLOBAL, STRATEGY and PROFILE.
+     */
+    public static boolean isScope(String scope) {
+        return GLOBAL.equals(scope) || STRATEGY.equals(scope) || PROFILE.equals(scope);
+    }
+
+    public void setStrategy(int strategy, double[] coeffs) {
+        strategies[strategy] = coeffs;
+    }
+
+    public void setProfile(int profile, int strategy, double[] coeffs) {
+        if (profiles[profile] == null) {
+            profiles[profile] = new double[StrategyDictionary.size()][];
+        }
+        profiles[profile][strategy] = coeffs;
+    }
+
+    /**
+     * The coefficients to use for the strategy in the profile.
+     */
+    public double[] get(int profile, int strategy) {
+        if (profiles[profile] != null && profiles[profile][strategy] != null) {
+            return profiles[profile][strategy];
+        }
+        if (strategies[strategy] != null) {
+            return strategies[strategy];
+        }
+        return global;
+    }
+
+    public double[] global() {
+        return global;
+    }
+
+    /**
+     * The strategy's own set, or null.
+     */
+    public double[] strategy(int strategy) {
+        return strategies[strategy];
+    }
+
+    /**
+     * The strategy's own set in the profile, or null.
+     */
+    public double[] profile(int profile, int strategy) {
+        return profiles[profile] == null ? null : profiles[profile][strategy];
+    }
+
+    /**
+     * The contents of the coefficients file.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int u = 0; u < global.length; u++) {
+            sb.append(global[u]);
+            sb.append("\n");
+        }
+        for (int s = 0; s < strategies.length; s++) {
+            if (strategies[s] != null) {
+                sb.append(STRATEGY);
+                sb.append("\t");
+                sb.append(StrategyDictionary.name(s));
+                appendCoeffs(sb, strategies[s]);
+            }
+        }
+        for (int p = 0; p < profiles.length; p++) {
+            if (profiles[p] == null) {
+                continue;
+            }
+            for (int s = 0; s < profiles[p].length; s++) {
+                if (profiles[p][s] != null) {
+                    sb.append(PROFILE);
+                    sb.append("\t");
+                    sb.append(ProfileKey.id(p));
+                    sb.append("\t");
+                    sb.append(StrategyDictionary.name(s));
+                    appendCoeffs(sb, profiles[p][s]);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendCoeffs(StringBuilder sb, double[] coeffs) {
+        for (int u = 0; u < coeffs.length; u++) {
+            sb.append("\t");
+            sb.append(coeffs[u]);
+        }
+        sb.append("\n");
+    }
+
+    /**
+     * Reads a coefficients file of any scope, text or binary (see
+     * IntermediateFormat).
+     */
+    public static ControlVariateCoefficients read(File file, int units) throws Exception {
+        if (IntermediateFormat.isBinary(file)) {
+            return IntermediateFormat.readCoefficients(file, units);
+        }
+        String[] lines = FileUtils.readFileToString(file).split("\n");
+        double[] global = new double[units];
+        for (int u = 0; u < units; u++) {
+            global[u] = Double.valueOf(lines[u].trim());
+        }
+        ControlVariateCoefficients coefficients = new ControlVariateCoefficients(global);
+        for (int i = units; i < lines.length; i++) {
+            if (lines[i].trim().isEmpty()) {
+                continue;
+            }
+            String[] split = lines[i].split("\t");
+            if (split[0].equals(STRATEGY) && split.length == units + 2) {
+                coefficients.setStrategy(strategyOrdinal(split[1]), parseCoeffs(split, 2, units));
+            } else if (split[0].equals(PROFILE) && split.length == units + 3) {
+                int profile = ProfileKey.index(ProfileKey.parse(split[1]));
+                coefficients.setProfile(profile, strategyOrdinal(split[2]), parseCoeffs(split, 3, units));
+            } else {
+                throw new Exception("Unexpected line in coefficients file: " + lines[i]);
+            }
+        }
+        return coefficients;
+    }
+
+    private static int strategyOrdinal(String name) throws Exception {
+        int strategy = StrategyDictionary.ordinal(name);
+        if (strategy < 0) {
+            throw new Exception("Unknown strategy in coefficients file: " + name);
+        }
+        return strategy;
+    }
+
+    private static double[] parseCoeffs(String[] split, int from, int units) {
+        double[] coeffs = new double[units];
+        for (int u = 0; u < units; u++) {
+            coeffs[u] = Double.valueOf(split[from + u]);
+        }
+        return coeffs;
+    }
+}
@@ -0,0 +1,90 @@
+package sim.cda;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.NonSymmetricMatrixException;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Solves Sigma c = sigma for the control variate coefficients c without
+ * forming the inverse of the covariance matrix Sigma. Sigma is factored once
+ * with a Cholesky decomposition, or with an LU decomposition if it is not
+ * symmetric positive definite, and the factorization is then reused for any
+ * number of right-hand sides.
+ *
+ * @author Augie
+ */
+public class ControlVariateSolver {
+
+    // Relative asymmetry tolerated before falling back to LU; Sigma built
+    //  from running sums is only symmetric up to rounding
+    public static final double SYMMETRY_THRESHOLD = 1e-10;
+    private final int units;
+    private final DecompositionSolver solver;
+    private final boolean cholesky;
+
+    public ControlVariateSolver(double[][] SigmaData) {
+        units = SigmaData.length;
+        RealMatrix Sigma = new Array2DRowRealMatrix(SigmaData);
+        DecompositionSolver choleskySolver;
+        try {
+            choleskySolver = new CholeskyDecomposition(Sigma, SYMMETRY_THRESHOLD, CholeskyDecomposition.DEFAULT_ABSOLUTE_POSITIVITY_THRESHOLD).getSolver();
+        } catch (NonSymmetricMatrixException e) {
+            choleskySolver = null;
+        } catch (NonPositiveDefiniteMatrixException e) {
+            choleskySolver = null;
+        }
+        cholesky = choleskySolver != null;
+        solver = cholesky ? choleskySolver : new LUDecomposition(Sigma).getSolver();
+    }
+
+    /**
+     * Whether Sigma was factored with Cholesky rather than LU.
+     */
+    public boolean isCholesky() {
+        return cholesky;
+    }
+
+    /**
+     * The coefficients for one sigma.
+     */
+    public double[] solve(double[] sigmaData) {
+        return solver.solve(new ArrayRealVector(sigmaData, false)).toArray();
+    }
+
+    /**
+     * The coefficients for each of the sigmas, given one per row, in one
+     * pass over the factorization.
+     */
+    public double[][] solve(double[][] sigmaData) {
+        if (sigmaData.length == 0) {
+            return new double[0][];
+        }
+        RealMatrix sigmas = new Array2DRowRealMatrix(units, sigmaData.length);
+        for (int i = 0; i < sigmaData.length; i++) {
+            sigmas.setColumn(i, sigmaData[i]);
+        }
+        RealMatrix coeffs = solver.solve(sigmas);
+        double[][] rows = new double[sigmaData.length][];
+        for (int i = 0; i < sigmaData.length; i++) {
+            rows[i] = coeffs.getColumn(i);
+        }
+        return rows;
+    }
+
+    /**
+     * sigma' Sigma^-1 sigma, the numerator of the variance reduction ratio.
+     */
+    public double quadraticForm(double[] sigmaData) {
+        double[] coeffs = solve(sigmaData);
+        double sum = 0;
+        for (int u = 0; u < units; u++) {
+            sum += sigmaData[u] * coeffs[u];
+        }
+        return sum;
+    }
+}
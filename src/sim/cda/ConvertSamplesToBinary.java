@@ -0,0 +1,53 @@
+package sim.cda;
+
+import java.io.File;
+
+/**
+ * One-time conversion of the sim#_sam#.xml samples gathered by GatherResults
+ * into sim#_sam#.bin files in the same directory (see BinarySampleFormat).
+ * The Calculate* stages read the binary copy whenever it is present and no
+ * older than the XML; older copies are converted again.
+ *
+ * @author Augie
+ */
+public class ConvertSamplesToBinary {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            throw new Exception("Expecting 1 arg: [samples directory]");
+        }
+
+        File samplesDir = new File(args[0]);
+        if (!samplesDir.exists()) {
+            throw new Exception("Samples directory does not exist.");
+        }
+
+        SampleReader reader = new SampleReader();
+        SampleData sample = new SampleData();
+        int converted = 0;
+        long xmlBytes = 0;
+        long binaryBytes = 0;
+        for (String fileName : samplesDir.list()) {
+            if (!fileName.toLowerCase().endsWith(".xml")) {
+                continue;
+            }
+            File sampleFile = new File(samplesDir, fileName);
+            File binaryFile = new File(samplesDir, fileName.substring(0, fileName.length() - 4) + BinarySampleFormat.EXTENSION);
+            // Already converted, since the sample last changed
+            if (BinarySampleFormat.isCurrent(binaryFile, sampleFile)) {
+                continue;
+            }
+            reader.read(sampleFile, sample);
+            // Write to the side so an interrupted run never leaves a partial cache
+            File tempFile = new File(samplesDir, binaryFile.getName() + ".tmp");
+            BinarySampleFormat.write(sample, tempFile);
+            if (!tempFile.renameTo(binaryFile)) {
+                throw new Exception("Could not move " + tempFile + " to " + binaryFile);
+            }
+            converted++;
+            xmlBytes += sampleFile.length();
+            binaryBytes += binaryFile.length();
+        }
+        System.out.println("Converted " + converted + " samples, " + xmlBytes + " bytes of XML to " + binaryBytes + " bytes");
+    }
+}
@@ -0,0 +1,185 @@
+package sim.cda;
+
+/**
+ * Sums, over agents, the outer products x x' of each agent's centered unit
+ * values (the Sigma data of the control variates) and the products w y of its
+ * payoff deviation with its centered normalized values (the sigma data).
+ * Agents are buffered in blocks (of BLOCK by default) and each block is added
+ * as a rank-k update X'X and X'y, a PANEL of agents at a time so that the
+ * agents being added stay in the L1 cache. Every sum is compensated (Kahan)
+ * and adds its agents one at a time and in order, so the result doesn't
+ * depend on the block sizes and the vector and scalar versions agree to the
+ * last bit.
+ *
+ * create() returns the SIMD VectorCovarianceAccumulator when it is compiled
+ * in, the JVM runs with --add-modules jdk.incubator.vector and the hardware
+ * has vectors of at least MIN_VECTOR_BITS (narrower ones, or none, leave the
+ * Vector API slower than plain code), and this scalar version otherwise.
+ * -Dsim.cda.vector=false forces the scalar one.
+ *
+ * @author Augie
+ */
+public class CovarianceAccumulator {
+
+    public static final int BLOCK = 1024;
+    public static final int PANEL = 128;
+    public static final int MIN_VECTOR_BITS = 256;
+    protected final int units;
+    // Agents per block
+    protected final int block;
+    // Row length in the arrays below, at least units
+    protected final int stride;
+    // Running sums, x x' row-major
+    protected final double[] outerProducts;
+    protected final double[] crossProducts;
+    // Low-order bits lost from the sums above, to subtract from the next term
+    protected final double[] outerCompensation;
+    protected final double[] crossCompensation;
+    // Agents not yet added, row-major
+    protected final double[] xBlock;
+    protected final double[] yBlock;
+    protected final double[] wBlock;
+    protected int pending = 0;
+
+    public CovarianceAccumulator(int units) {
+        this(units, BLOCK);
+    }
+
+    /**
+     * Smaller blocks save memory when there are many accumulators.
+     */
+    public CovarianceAccumulator(int units, int block) {
+        this(units, units, block);
+    }
+
+    /**
+     * Rows padded to the given length with zeros.
+     */
+    protected CovarianceAccumulator(int units, int stride, int block) {
+        this.units = units;
+        this.block = block;
+        this.stride = stride;
+        outerProducts = new double[units * stride];
+        crossProducts = new double[stride];
+        outerCompensation = new double[units * stride];
+        crossCompensation = new double[stride];
+        xBlock = new double[block * stride];
+        yBlock = new double[block * stride];
+        wBlock = new double[block];
+    }
+
+    /**
+     * The vector version if it can be used, else the scalar one.
+     */
+    public static CovarianceAccumulator create(int units) {
+        return create(units, BLOCK);
+    }
+
+    /**
+     * The vector version if it can be used, else the scalar one, with the
+     * given block size.
+     */
+    public static CovarianceAccumulator create(int units, int block) {
+        if (Boolean.parseBoolean(System.getProperty("sim.cda.vector", "true"))) {
+            CovarianceAccumulator vector = createVector(units, block);
+            if (vector != null && vector.vectorBitSize() >= MIN_VECTOR_BITS) {
+                return vector;
+            }
+        }
+        return new CovarianceAccumulator(units, block);
+    }
+
+    /**
+     * The vector version, or null if it is not compiled in or the
+     * jdk.incubator.vector module is not available.
+     */
+    public static CovarianceAccumulator createVector(int units) {
+        return createVector(units, BLOCK);
+    }
+
+    /**
+     * The vector version with the given block size, or null.
+     */
+    public static CovarianceAccumulator createVector(int units, int block) {
+        try {
+            return (CovarianceAccumulator) Class.forName("sim.cda.VectorCovarianceAccumulator").getConstructor(int.class, int.class).newInstance(units, block);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Bits of the sums added by one instruction, a single double here.
+     */
+    public int vectorBitSize() {
+        return Double.SIZE;
+    }
+
+    /**
+     * Adds x x' to the Sigma data and w y to the sigma data.
+     */
+    public void add(double[] x, double[] y, double w) {
+        System.arraycopy(x, 0, xBlock, pending * stride, units);
+        System.arraycopy(y, 0, yBlock, pending * stride, units);
+        wBlock[pending] = w;
+        if (++pending == block) {
+            flush();
+        }
+    }
+
+    /**
+     * Adds the buffered agents to the sums.
+     */
+    protected void flush() {
+        for (int start = 0; start < pending; start += PANEL) {
+            int end = Math.min(pending, start + PANEL);
+            // The sums of a row don't depend on each other, so the r loop is
+            //  innermost to keep more than one add in flight
+            for (int q = 0; q < units; q++) {
+                int row = q * stride;
+                for (int k = start; k < end; k++) {
+                    double xq = xBlock[k * stride + q];
+                    for (int r = 0; r < units; r++) {
+                        double term = xq * xBlock[k * stride + r] - outerCompensation[row + r];
+                        double sum = outerProducts[row + r] + term;
+                        outerCompensation[row + r] = (sum - outerProducts[row + r]) - term;
+                        outerProducts[row + r] = sum;
+                    }
+                }
+            }
+            for (int k = start; k < end; k++) {
+                for (int u = 0; u < units; u++) {
+                    double term = wBlock[k] * yBlock[k * stride + u] - crossCompensation[u];
+                    double sum = crossProducts[u] + term;
+                    crossCompensation[u] = (sum - crossProducts[u]) - term;
+                    crossProducts[u] = sum;
+                }
+            }
+        }
+        pending = 0;
+    }
+
+    /**
+     * Sum of x x' over all agents added so far.
+     */
+    public double[][] outerProducts() {
+        flush();
+        double[][] sums = new double[units][units];
+        for (int q = 0; q < units; q++) {
+            System.arraycopy(outerProducts, q * stride, sums[q], 0, units);
+        }
+        return sums;
+    }
+
+    /**
+     * Sum of w y over all agents added so far.
+     */
+    public double[] crossProducts() {
+        flush();
+        double[] sums = new double[units];
+        System.arraycopy(crossProducts, 0, sums, 0, units);
+        return sums;
+    }
+}
@@ -0,0 +1,101 @@
+package sim.cda;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.commons.math3.linear.SingularMatrixException;
+
+/**
+ * Control variate sums kept separately for each of a number of groups of
+ * agents, such as the agents of each strategy, so that each group can get
+ * its own coefficients. A group's accumulator is only created when its first
+ * agent is added, with small blocks, since there can be thousands of groups.
+ *
+ * @author Augie
+ */
+public class CovarianceGroups {
+
+    public static final int BLOCK = 64;
+    // Groups solved per task
+    public static final int THRESHOLD = 16;
+    private final int units;
+    private final CovarianceAccumulator[] groups;
+    private final long[] agentCounts;
+
+    public CovarianceGroups(int units, int groupCount) {
+        this.units = units;
+        groups = new CovarianceAccumulator[groupCount];
+        agentCounts = new long[groupCount];
+    }
+
+    /**
+     * Adds an agent to the group's sums; see CovarianceAccumulator.add().
+     */
+    public void add(int group, double[] x, double[] y, double w) {
+        if (groups[group] == null) {
+            groups[group] = CovarianceAccumulator.create(units, BLOCK);
+        }
+        groups[group].add(x, y, w);
+        agentCounts[group]++;
+    }
+
+    public long agentCount(int group) {
+        return agentCounts[group];
+    }
+
+    /**
+     * The coefficients of every group, solved in parallel on the common
+     * fork-join pool. A group gets null if it has too few agents for the
+     * variance reduction to be meaningful (no more than units + 2) or its
+     * covariance matrix is singular.
+     */
+    public double[][] solve() {
+        double[][] coeffs = new double[groups.length][];
+        ForkJoinPool.commonPool().invoke(new Solve(coeffs, 0, groups.length));
+        return coeffs;
+    }
+
+    private double[] solve(int group) {
+        long n = agentCounts[group];
+        if (n <= units + 2) {
+            return null;
+        }
+        double[][] SigmaData = groups[group].outerProducts();
+        double[] sigmaData = groups[group].crossProducts();
+        for (int i = 0; i < units; i++) {
+            for (int j = 0; j < units; j++) {
+                SigmaData[i][j] /= (n - 1);
+            }
+            sigmaData[i] /= (n - 1);
+        }
+        try {
+            return new ControlVariateSolver(SigmaData).solve(sigmaData);
+        } catch (SingularMatrixException e) {
+            return null;
+        }
+    }
+
+    private class Solve extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final double[][] coeffs;
+        private final int from;
+        private final int to;
+
+        private Solve(double[][] coeffs, int from, int to) {
+            this.coeffs = coeffs;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Solve(coeffs, from, middle), new Solve(coeffs, middle, to));
+                return;
+            }
+            for (int g = from; g < to; g++) {
+                coeffs[g] = solve(g);
+            }
+        }
+    }
+}
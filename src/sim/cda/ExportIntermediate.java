@@ -0,0 +1,50 @@
+package sim.cda;
+
+import java.io.File;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes the text form of a binary unit values, average payoffs or
+ * coefficients file (see IntermediateFormat).
+ *
+ * @author Augie
+ */
+public class ExportIntermediate {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new Exception("Expecting 2 args: [binary intermediate file] [output text file]");
+        }
+
+        File inFile = new File(args[0]);
+        if (!inFile.exists()) {
+            throw new Exception("Intermediate file does not exist.");
+        }
+
+        File outFile = new File(args[1]);
+        if (outFile.exists()) {
+            throw new Exception("Output file already exists.");
+        }
+
+        if (!IntermediateFormat.isBinary(inFile)) {
+            throw new Exception("Not a binary intermediate file.");
+        }
+
+        int units = MarketConfig.get().units();
+        String text;
+        switch (IntermediateFormat.kind(inFile)) {
+            case IntermediateFormat.UNIT_VALUES:
+                text = IntermediateFormat.unitValuesString(IntermediateFormat.readUnitValues(inFile, units));
+                break;
+            case IntermediateFormat.PAYOFFS:
+                text = IntermediateFormat.readPayoffs(inFile).toString();
+                break;
+            case IntermediateFormat.COEFFICIENTS:
+                text = ControlVariateCoefficients.read(inFile, units).toString();
+                break;
+            default:
+                throw new Exception("Unknown kind of intermediate file.");
+        }
+        FileUtils.writeStringToFile(outFile, text);
+    }
+}
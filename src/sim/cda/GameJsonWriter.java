@@ -0,0 +1,190 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Streams a game JSON payoff matrix (a header, then each profile's role and
+ * its strategies' count, payoff and payoff_std) straight into a large byte
+ * buffer, so a game of thousands of profiles is written in a few large
+ * writes. Numbers are formatted in place: integers digit by digit, doubles
+ * through one reused StringBuilder, which gives the same digits as
+ * Double.toString without building a String per number. A file name ending
+ * in .gz is gzipped.
+ *
+ * Calls go header(), then startProfile(), strategy()... and endProfile() for
+ * each profile, then finish().
+ *
+ * @author Augie
+ */
+public class GameJsonWriter {
+
+    public static final int BUFFER = 1 << 20;
+    public static final String GZIP_EXTENSION = ".gz";
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER];
+    private int position = 0;
+    // Digits of the number being written
+    private final StringBuilder number = new StringBuilder(32);
+    private final char[] digits = new char[32];
+    private int profiles = 0;
+    private int strategies = 0;
+
+    public GameJsonWriter(File outFile) throws IOException {
+        OutputStream fileOut = FileUtils.openOutputStream(outFile);
+        if (outFile.getName().toLowerCase().endsWith(GZIP_EXTENSION)) {
+            try {
+                out = new GZIPOutputStream(fileOut, 1 << 16);
+            } catch (IOException e) {
+                fileOut.close();
+                throw e;
+            }
+        } else {
+            out = fileOut;
+        }
+    }
+
+    /**
+     * The game's ID, names and roles, up to the opening of the profiles.
+     */
+    public void header(String name, String simulatorFullname, String rolesJson) throws IOException {
+        write("{\"id\":\"329509325323\",\"name\":\"");
+        writeEscaped(name);
+        write("\",\"simulator_fullname\":\"");
+        writeEscaped(simulatorFullname);
+        write("\",\"parameter_hash\":{\"foo\":\"bar\"},");
+        write(rolesJson);
+        write("\"profiles\":[");
+    }
+
+    /**
+     * Opens the next profile, with its single role. Profiles get IDs from 0
+     * in the order they are written.
+     */
+    public void startProfile(long sampleCount, String role) throws IOException {
+        if (profiles > 0) {
+            write(',');
+        }
+        write("{\"id\":\"");
+        write(profiles++);
+        write("\",\"sample_count\":");
+        write(sampleCount);
+        write(",\"roles\":[{\"name\":\"");
+        writeEscaped(role);
+        write("\",\"strategies\":[");
+        strategies = 0;
+    }
+
+    public void strategy(String name, int count, double payoff, double payoffStd) throws IOException {
+        startStrategy(name, count, payoff, payoffStd);
+        write('}');
+    }
+
+    /**
+     * A strategy with the confidence interval of its payoff, as
+     * payoff_ci_lower and payoff_ci_upper.
+     */
+    public void strategy(String name, int count, double payoff, double payoffStd, double lower, double upper) throws IOException {
+        startStrategy(name, count, payoff, payoffStd);
+        write(",\"payoff_ci_lower\":");
+        write(lower);
+        write(",\"payoff_ci_upper\":");
+        write(upper);
+        write('}');
+    }
+
+    private void startStrategy(String name, int count, double payoff, double payoffStd) throws IOException {
+        if (strategies++ > 0) {
+            write(',');
+        }
+        write("{\"name\":\"");
+        writeEscaped(name);
+        write("\",\"count\":");
+        write(count);
+        write(",\"payoff\":");
+        write(payoff);
+        write(",\"payoff_std\":");
+        write(payoffStd);
+    }
+
+    public void endProfile() throws IOException {
+        write("]}]}");
+    }
+
+    /**
+     * Closes the profiles and the game and flushes everything to the file.
+     */
+    public void finish() throws IOException {
+        write("]}");
+        flushBuffer();
+        if (out instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) out).finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Closes the file, without finishing the game.
+     */
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void write(char c) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) c;
+    }
+
+    private void write(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void writeEscaped(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                write('\\');
+            }
+            write(c);
+        }
+    }
+
+    private void write(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            write(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) {
+            write(digits[--count]);
+        }
+    }
+
+    private void write(double value) throws IOException {
+        number.setLength(0);
+        number.append(value);
+        for (int i = 0; i < number.length(); i++) {
+            write(number.charAt(i));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,122 @@
+package sim.cda;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only record of the samples GatherResults has copied, one line per
+ * sample: source path, size, modification time, CRC32 of the contents and
+ * the name of the copy, separated by tabs. A line is only written once its
+ * copy is in place, so on a restart every sample in the manifest with an
+ * unchanged size and modification time is finished work. A line cut short
+ * by a crash is ignored and its sample is copied again.
+ *
+ * @author Augie
+ */
+public class GatherManifest {
+
+    public static final String FILE_NAME = "manifest.txt";
+
+    public static class Entry {
+
+        public final String source;
+        public final long size;
+        public final long lastModified;
+        public final long checksum;
+        public final String sampleName;
+
+        public Entry(String source, long size, long lastModified, long checksum, String sampleName) {
+            this.source = source;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.checksum = checksum;
+            this.sampleName = sampleName;
+        }
+    }
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private Writer out;
+
+    /**
+     * Opens the manifest in the directory, reading what was gathered so far.
+     */
+    public GatherManifest(File dir) throws IOException {
+        file = new File(dir, FILE_NAME);
+        boolean endsWithNewline = true;
+        if (file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] split = line.split("\t");
+                    if (split.length != 5) {
+                        continue;
+                    }
+                    try {
+                        Entry entry = new Entry(split[0], Long.parseLong(split[1]), Long.parseLong(split[2]), Long.parseLong(split[3], 16), split[4]);
+                        entries.put(entry.source, entry);
+                    } catch (NumberFormatException e) {
+                        // Partly written line
+                    }
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            endsWithNewline = file.length() == 0 || endsWithNewline(file);
+        }
+        out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        if (!endsWithNewline) {
+            // Keep the next entry off the end of a cut short line
+            out.write("\n");
+            out.flush();
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.skip(file.length() - 1);
+            return in.read() == '\n';
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Entry get(String source) {
+        return entries.get(source);
+    }
+
+    /**
+     * Whether the source file was already gathered and has not changed since.
+     */
+    public synchronized boolean contains(File source) {
+        Entry entry = entries.get(source.getPath());
+        return entry != null && entry.size == source.length() && entry.lastModified == source.lastModified();
+    }
+
+    /**
+     * Records a gathered sample and flushes the line to the file.
+     */
+    public synchronized void add(Entry entry) throws IOException {
+        out.write(entry.source + "\t" + entry.size + "\t" + entry.lastModified + "\t" + Long.toHexString(entry.checksum) + "\t" + entry.sampleName + "\n");
+        out.flush();
+        entries.put(entry.source, entry);
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(out);
+    }
+}
@@ -1,25 +1,36 @@
 package sim.cda;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 /**
+ * Copies every sample of the simulations from the given ID on into the output
+ * directory, on a fixed number of copying threads. Each copied sample is
+ * recorded in the output directory's GatherManifest, so a restarted run skips
+ * the samples it already has with a look-up instead of listing the output
+ * directory. A sample that is not in the manifest but already has its copy,
+ * such as one gathered before there was a manifest, is recorded from that
+ * copy instead of being copied again.
  *
  * @author Augie
  */
 public class GatherResults {
 
     public static void main(String[] args) throws Exception {
-        if (args.length != 3) {
-            throw new Exception("Expecting 3 arguments: [top simulation directory] [simulation #] [output directory]");
+        if (args.length != 3 && args.length != 4) {
+            throw new Exception("Expecting 3 or 4 arguments: [top simulation directory] [simulation #] [output directory] [copying threads]");
         }
-        
-        // Users from which data has already been gathered
-        Set<String> alreadyGathereredFromUsers = new HashSet<String>();
-        alreadyGathereredFromUsers.addAll(Arrays.asList(new String[]{"vempatik", "wellman", "augie", "btwied", "kamanlok", "dyoon", "qduong", "bcassell"}));
 
         // Get directory of simulations
         File simDir = new File(args[0]);
@@ -31,58 +42,126 @@ public class GatherResults {
         int earliestSimulationID = Integer.valueOf(args[1]);
 
         // Get the output directory
-        File outDir = new File(args[2]);
+        final File outDir = new File(args[2]);
         if (!outDir.exists() && !outDir.mkdirs()) {
             throw new Exception("Could not create output directory.");
         }
-        // Make a quick look-up set of simulation IDs
-        Set<Integer> alreadyGathered = new HashSet<Integer>();
-        for (String sampleName : outDir.list()) {
-            if (!sampleName.endsWith(".xml")) {
-                continue;
-            }
-            alreadyGathered.add(Integer.valueOf(sampleName.substring(0, sampleName.indexOf("_"))));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 4) {
+            threads = Integer.valueOf(args[3]);
         }
 
-        // Top level is directories named for users
-        for (String userDirLoc : simDir.list()) {
-            if (alreadyGathereredFromUsers.contains(userDirLoc)) {
-                continue;
-            }
-            System.out.println("Scanning " + userDirLoc + " directory");
-            File userDirFile = new File(simDir, userDirLoc);
-            // Second level is directories named for simulations ID's
-            for (String simDirLoc : userDirFile.list()) {
-                try {
-                    int simID = Integer.valueOf(simDirLoc).intValue();
-                    if (simID < earliestSimulationID
-                            || alreadyGathered.contains(simID)) {
-                        continue;
-                    }
-                    File simDirFile = new File(userDirFile, simDirLoc);
-                    // Third level is the simulation directory
-                    File pastGamesDir = new File(simDirFile, "past_games");
-                    // Make sure past_games dir exists
-                    if (!pastGamesDir.exists()) {
-                        continue;
-                    }
-                    // past_games contains directories numbered from 1-#samples
-                    for (String sampleDirLoc : pastGamesDir.list()) {
-                        // Each sample directory contains alloc.xml
-                        File sampleDirFile = new File(pastGamesDir, sampleDirLoc);
-                        // Check for alloc.xml
-                        File allocXMLFile = new File(sampleDirFile, "alloc.xml");
-                        if (!allocXMLFile.exists()) {
+        final GatherManifest manifest = new GatherManifest(outDir);
+
+        // Listing stays on this thread; a full queue makes it copy as well
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        final AtomicInteger copied = new AtomicInteger();
+        final AtomicInteger recorded = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        int skipped = 0;
+        try {
+            // Top level is directories named for users
+            for (String userDirLoc : simDir.list()) {
+                System.out.println("Scanning " + userDirLoc + " directory");
+                File userDirFile = new File(simDir, userDirLoc);
+                // Second level is directories named for simulations ID's
+                for (String simDirLoc : userDirFile.list()) {
+                    try {
+                        int simID = Integer.valueOf(simDirLoc).intValue();
+                        if (simID < earliestSimulationID) {
+                            continue;
+                        }
+                        File simDirFile = new File(userDirFile, simDirLoc);
+                        // Third level is the simulation directory
+                        File pastGamesDir = new File(simDirFile, "past_games");
+                        // Make sure past_games dir exists
+                        if (!pastGamesDir.exists()) {
                             continue;
                         }
-                        // Copy the file to the output directory with the naming
-                        //  convention: sim#_sam#.xml
-                        FileUtils.copyFile(allocXMLFile, new File(outDir, simDirLoc + "_" + sampleDirLoc + ".xml"));
+                        // past_games contains directories numbered from 1-#samples
+                        for (String sampleDirLoc : pastGamesDir.list()) {
+                            // Each sample directory contains alloc.xml
+                            File sampleDirFile = new File(pastGamesDir, sampleDirLoc);
+                            // Check for alloc.xml
+                            final File allocXMLFile = new File(sampleDirFile, "alloc.xml");
+                            if (!allocXMLFile.exists()) {
+                                continue;
+                            }
+                            if (manifest.contains(allocXMLFile)) {
+                                skipped++;
+                                continue;
+                            }
+                            // Copy the file to the output directory with the naming
+                            //  convention: sim#_sam#.xml
+                            final String sampleName = simDirLoc + "_" + sampleDirLoc;
+                            // Copied before it could be recorded; a changed
+                            //  source has an entry and is copied again
+                            final boolean record = manifest.get(allocXMLFile.getPath()) == null
+                                    && new File(outDir, sampleName + ".xml").exists();
+                            pool.execute(new Runnable() {
+
+                                public void run() {
+                                    try {
+                                        if (record) {
+                                            record(allocXMLFile, outDir, sampleName, manifest);
+                                            recorded.incrementAndGet();
+                                        } else {
+                                            gather(allocXMLFile, outDir, sampleName, manifest);
+                                            copied.incrementAndGet();
+                                        }
+                                    } catch (Exception e) {
+                                        failed.incrementAndGet();
+                                        System.err.println("Could not gather " + allocXMLFile);
+                                        e.printStackTrace();
+                                    }
+                                }
+                            });
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
                     }
-                } catch (Exception e) {
-                    e.printStackTrace();
                 }
             }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            manifest.close();
         }
+        System.out.println("Copied " + copied.get() + " samples, skipped " + skipped + " already gathered, recorded " + recorded.get() + " already copied, " + failed.get() + " failed");
+    }
+
+    /**
+     * Copies a sample into the output directory and records it in the
+     * manifest. The copy is written to the side and moved into place, so the
+     * directory never holds a partial sample.
+     */
+    private static void gather(File allocXMLFile, File outDir, String sampleName, GatherManifest manifest) throws IOException {
+        // Stat before reading, so a change during the copy is caught next run
+        long size = allocXMLFile.length();
+        long lastModified = allocXMLFile.lastModified();
+        File outFile = new File(outDir, sampleName + ".xml");
+        File tempFile = new File(outDir, outFile.getName() + ".tmp");
+        CheckedInputStream in = new CheckedInputStream(new FileInputStream(allocXMLFile), new CRC32());
+        try {
+            Files.copy(in, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        Files.move(tempFile.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        manifest.add(new GatherManifest.Entry(allocXMLFile.getPath(), size, lastModified, in.getChecksum().getValue(), sampleName));
+    }
+
+    /**
+     * Records a sample whose copy is already in the output directory, with
+     * the checksum of that copy.
+     */
+    private static void record(File allocXMLFile, File outDir, String sampleName, GatherManifest manifest) throws IOException {
+        long size = allocXMLFile.length();
+        long lastModified = allocXMLFile.lastModified();
+        File outFile = new File(outDir, sampleName + ".xml");
+        long checksum = FileUtils.checksumCRC32(outFile);
+        manifest.add(new GatherManifest.Entry(allocXMLFile.getPath(), size, lastModified, checksum, sampleName));
     }
 }
@@ -0,0 +1,229 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes synthetic sim#_sam#.xml samples of the configured market, in the
+ * schema SampleReader reads, for trying the stages on more samples than
+ * there are. Every simulation plays one profile, taken from all of the
+ * profiles in turn, and holds SAMPLES_PER_SIMULATION samples.
+ *
+ * Each agent gets sorted random unit values, descending for the buyers (even
+ * IDs) and ascending for the sellers. In each repetition random buyers and
+ * sellers are paired and trade their next units when the value covers the
+ * cost, at a price that leans towards the side whose strategy bargains
+ * harder; each strategy's bargaining is drawn once from the seed. An agent's
+ * score is its average surplus over the repetitions, so payoffs depend on
+ * both the unit values and the strategies.
+ *
+ * A sample only depends on the seed and its number, so the output is the
+ * same on any number of threads, and a rerun with the same seed fills in
+ * what an interrupted run left out.
+ *
+ * @author Augie
+ */
+public class GenerateSamples {
+
+    public static final int SAMPLES_PER_SIMULATION = 10;
+    // Pairings tried per agent unit in each repetition
+    public static final int ATTEMPTS_PER_UNIT = 2;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 && args.length != 4) {
+            throw new Exception("Expecting 3 or 4 args: [output directory] [sample count] [seed] [threads]");
+        }
+
+        final MarketConfig market = MarketConfig.get();
+        if (market.agents() < 2) {
+            throw new Exception("A market needs a buyer and a seller.");
+        }
+
+        final File outDir = new File(args[0]);
+        if (!outDir.exists() && !outDir.mkdirs()) {
+            throw new Exception("Could not create output directory.");
+        }
+
+        final long sampleCount = Long.valueOf(args[1]);
+        final long seed = Long.valueOf(args[2]);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length == 4) {
+            threads = Integer.valueOf(args[3]);
+        }
+
+        // How hard each strategy bargains, from 0 to 1
+        Random strategyRandom = new Random(seed);
+        final double[] bargaining = new double[StrategyDictionary.size()];
+        for (int s = 0; s < bargaining.length; s++) {
+            bargaining[s] = strategyRandom.nextDouble();
+        }
+
+        // Queueing stays on this thread; a full queue makes it generate as well
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        final AtomicInteger generated = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        try {
+            long simulations = (sampleCount + SAMPLES_PER_SIMULATION - 1) / SAMPLES_PER_SIMULATION;
+            for (long sim = 0; sim < simulations; sim++) {
+                final long firstSample = sim * SAMPLES_PER_SIMULATION;
+                final long lastSample = Math.min(firstSample + SAMPLES_PER_SIMULATION, sampleCount);
+                final long profile = ProfileKey.key((int) (sim % ProfileKey.COUNT));
+                pool.execute(new Runnable() {
+
+                    public void run() {
+                        StringBuilder sb = new StringBuilder();
+                        for (long sample = firstSample; sample < lastSample; sample++) {
+                            File sampleFile = new File(outDir, sampleName(sample) + ".xml");
+                            if (sampleFile.exists()) {
+                                skipped.incrementAndGet();
+                                continue;
+                            }
+                            try {
+                                sb.setLength(0);
+                                generate(market, profile, bargaining, new Random(seed(seed, sample)), sb);
+                                write(sb, sampleFile);
+                                generated.incrementAndGet();
+                            } catch (Exception e) {
+                                failed.incrementAndGet();
+                                System.err.println("Could not generate " + sampleFile);
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        System.out.println("Generated " + generated.get() + " samples, skipped " + skipped.get() + " already there, " + failed.get() + " failed");
+    }
+
+    /**
+     * sim#_sam#, with simulations and samples numbered from 1 as GatherResults
+     * finds them.
+     */
+    public static String sampleName(long sample) {
+        return (sample / SAMPLES_PER_SIMULATION + 1) + "_" + (sample % SAMPLES_PER_SIMULATION + 1);
+    }
+
+    /**
+     * The seed of one sample's random numbers.
+     */
+    public static long seed(long seed, long sample) {
+        // SplitMix64 finalizer, so neighbouring samples get unrelated streams
+        long z = seed + (sample + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Appends the XML of one sample of the profile.
+     */
+    public static void generate(MarketConfig market, long profile, double[] bargaining, Random random, StringBuilder sb) {
+        int agents = market.agents();
+        int units = market.units();
+
+        // Every agentsPerPlayer agents in a row play one player's strategy
+        int[] strategies = new int[agents];
+        {
+            int agent = 0;
+            for (int s = 0; s < StrategyDictionary.size(); s++) {
+                for (int i = 0; i < ProfileKey.count(profile, s) * market.agentsPerPlayer(); i++) {
+                    strategies[agent++] = s;
+                }
+            }
+        }
+
+        // Sorted unit values, the best unit first
+        int[][] values = new int[agents][units];
+        for (int a = 0; a < agents; a++) {
+            for (int u = 0; u < units; u++) {
+                values[a][u] = market.vMin() + random.nextInt(market.vMax() - market.vMin() + 1);
+            }
+            Arrays.sort(values[a]);
+            if (isBuyer(a)) {
+                for (int u = 0; u < units / 2; u++) {
+                    int value = values[a][u];
+                    values[a][u] = values[a][units - 1 - u];
+                    values[a][units - 1 - u] = value;
+                }
+            }
+        }
+
+        int buyers = (agents + 1) / 2;
+        int sellers = agents / 2;
+        int[] traded = new int[agents];
+        long[] surplus = new long[agents];
+        sb.append("<?xml version=\"1.0\"?>\n<results>\n<transactions>\n");
+        for (int r = 1; r <= market.reps(); r++) {
+            sb.append("<repetition><id>").append(r).append("</id>\n");
+            Arrays.fill(traded, 0);
+            int time = 0;
+            for (int attempt = 0; attempt < agents * units * ATTEMPTS_PER_UNIT; attempt++) {
+                int buyer = 2 * random.nextInt(buyers);
+                int seller = 2 * random.nextInt(sellers) + 1;
+                if (traded[buyer] == units || traded[seller] == units) {
+                    continue;
+                }
+                int value = values[buyer][traded[buyer]];
+                int cost = values[seller][traded[seller]];
+                if (value < cost) {
+                    continue;
+                }
+                // The seller's share of the surplus
+                double share = 0.5 + 0.25 * (bargaining[strategies[seller]] - bargaining[strategies[buyer]]) + 0.25 * (random.nextDouble() - 0.5);
+                int price = cost + (int) Math.round((value - cost) * share);
+                surplus[buyer] += value - price;
+                surplus[seller] += price - cost;
+                traded[buyer]++;
+                traded[seller]++;
+                sb.append("<transaction><buyerID>").append(buyer)
+                        .append("</buyerID><sellerID>").append(seller)
+                        .append("</sellerID><price>").append(price)
+                        .append("</price><time>").append(time++)
+                        .append("</time></transaction>\n");
+            }
+            sb.append("</repetition>\n");
+        }
+        sb.append("</transactions>\n<scores>\n");
+        for (int a = 0; a < agents; a++) {
+            sb.append("<agent><ID>").append(a)
+                    .append("</ID><strategy>").append(StrategyDictionary.name(strategies[a]))
+                    .append("</strategy><score>").append(surplus[a] / (double) market.reps())
+                    .append("</score><values>");
+            for (int u = 0; u < units; u++) {
+                sb.append("<value>").append(values[a][u]).append("</value>");
+            }
+            sb.append("</values></agent>\n");
+        }
+        sb.append("</scores>\n</results>\n");
+    }
+
+    private static boolean isBuyer(int agent) {
+        return agent % 2 == 0;
+    }
+
+    /**
+     * Writes a sample to the side and moves it into place, so the directory
+     * never holds a partial sample.
+     */
+    private static void write(StringBuilder sb, File sampleFile) throws IOException {
+        File tempFile = new File(sampleFile.getParentFile(), sampleFile.getName() + ".tmp");
+        FileUtils.writeStringToFile(tempFile, sb.toString(), "UTF-8");
+        if (!tempFile.renameTo(sampleFile)) {
+            throw new IOException("Could not move " + tempFile + " to " + sampleFile);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Binary encoding of the files the stages hand to each other: the average
+ * unit values, the average payoffs (see PayoffTable) and the coefficients
+ * (see ControlVariateCoefficients). A stage writes the binary form when the
+ * output file name ends in EXTENSION and the text form otherwise, and reads
+ * either, so a binary file is loaded in one read into typed arrays.
+ * ExportIntermediate turns a binary file back into text.
+ *
+ * Every file starts with a header naming its kind and the market it belongs
+ * to, which has to match the current one:
+ *
+ *   int     magic
+ *   byte    version
+ *   byte    kind
+ *   short   # units U
+ *   short   # players
+ *   byte    # strategies S, then S strategy names (length byte, ASCII)
+ *
+ * followed by, for the unit values,
+ *
+ *   double  values [U]
+ *
+ * for the average payoffs,
+ *
+ *   int     # profiles P
+ *   long    profile keys [P]
+ *   long    sample counts [P]
+ *   double  payoffs [P * S], then std devs [P * S], 0 for unused strategies
+ *   byte    flags (version 2): 1 if confidence intervals follow, plus 2 if
+ *           the reduced-variance averages do (version 3)
+ *   double  reduced-variance averages [P * S], then lower bounds [P * S],
+ *           then upper bounds [P * S]
+ *
+ * and for the coefficients,
+ *
+ *   double  global coefficients [U]
+ *   short   # strategy sets N, then strategy ordinals [N] (bytes)
+ *   double  coefficients [N * U]
+ *   int     # profile sets M, then profile keys [M] (longs)
+ *   byte    strategy ordinals [M]
+ *   double  coefficients [M * U]
+ *
+ * Older versions, without the intervals flag (1) or the reduced averages
+ * (2), are still read.
+ *
+ * @author Augie
+ */
+public class IntermediateFormat {
+
+    public static final String EXTENSION = ".dat";
+    public static final int MAGIC = 0x43444149;
+    public static final byte VERSION = 3;
+    public static final byte UNIT_VALUES = 1;
+    public static final byte PAYOFFS = 2;
+    public static final byte COEFFICIENTS = 3;
+    // Payoff flags
+    public static final byte INTERVALS = 1;
+    public static final byte REDUCED_AVERAGES = 2;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Whether a stage writes the file in binary.
+     */
+    public static boolean isBinaryName(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Whether the file holds the binary form, whatever its name.
+     */
+    public static boolean isBinary(File file) throws IOException {
+        if (file.length() < 4) {
+            return false;
+        }
+        InputStream in = null;
+        try {
+            in = FileUtils.openInputStream(file);
+            byte[] magic = new byte[4];
+            IOUtils.readFully(in, magic);
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * The kind of a binary file.
+     */
+    public static byte kind(File file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+        return readHeader(in, file);
+    }
+
+    public static void writeUnitValues(File file, double[] values) throws IOException {
+        if (!isBinaryName(file)) {
+            FileUtils.writeStringToFile(file, unitValuesString(values));
+            return;
+        }
+        ByteBuffer out = ByteBuffer.allocate(headerSize() + values.length * 8);
+        writeHeader(out, UNIT_VALUES);
+        putDoubles(out, values);
+        FileUtils.writeByteArrayToFile(file, out.array());
+    }
+
+    public static double[] readUnitValues(File file, int units) throws IOException {
+        if (!isBinary(file)) {
+            double[] values = new double[units];
+            int count = 0;
+            for (String value : FileUtils.readFileToString(file).split("\n")) {
+                values[count++] = Double.valueOf(value.trim());
+            }
+            return values;
+        }
+        ByteBuffer in = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+        expectKind(in, file, UNIT_VALUES);
+        return getDoubles(in, units);
+    }
+
+    /**
+     * The text form of the unit values, one per line.
+     */
+    public static String unitValuesString(double[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int u = 0; u < values.length; u++) {
+            sb.append(values[u]);
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    public static void writePayoffs(File file, PayoffTable table) throws IOException {
+        if (!isBinaryName(file)) {
+            FileUtils.writeStringToFile(file, table.toString());
+            return;
+        }
+        int[] profiles = table.profiles();
+        int strategies = StrategyDictionary.size();
+        boolean reduced = table.hasIntervals() && table.reducedAverages() != null;
+        int arrays = 2 + (table.hasIntervals() ? 2 : 0) + (reduced ? 1 : 0);
+        ByteBuffer out = ByteBuffer.allocate(headerSize() + 4 + profiles.length * (16 + strategies * 8 * arrays) + 1);
+        writeHeader(out, PAYOFFS);
+        out.putInt(profiles.length);
+        for (int p : profiles) {
+            out.putLong(ProfileKey.key(p));
+        }
+        for (int p : profiles) {
+            out.putLong(table.sampleCounts()[p]);
+        }
+        double[] zeros = new double[strategies];
+        for (int p : profiles) {
+            putDoubles(out, table.averages()[p] == null ? zeros : table.averages()[p]);
+        }
+        for (int p : profiles) {
+            putDoubles(out, table.stdDevs()[p] == null ? zeros : table.stdDevs()[p]);
+        }
+        out.put((byte) ((table.hasIntervals() ? INTERVALS : 0) | (reduced ? REDUCED_AVERAGES : 0)));
+        if (reduced) {
+            for (int p : profiles) {
+                putDoubles(out, table.reducedAverages()[p] == null ? zeros : table.reducedAverages()[p]);
+            }
+        }
+        if (table.hasIntervals()) {
+            for (int p : profiles) {
+                putDoubles(out, table.lower()[p] == null ? zeros : table.lower()[p]);
+            }
+            for (int p : profiles) {
+                putDoubles(out, table.upper()[p] == null ? zeros : table.upper()[p]);
+            }
+        }
+        FileUtils.writeByteArrayToFile(file, out.array());
+    }
+
+    public static PayoffTable readPayoffs(File file) throws IOException {
+        if (!isBinary(file)) {
+            return PayoffTable.parse(FileUtils.readFileToString(file));
+        }
+        ByteBuffer in = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+        byte version = in.get(4);
+        expectKind(in, file, PAYOFFS);
+        int strategies = StrategyDictionary.size();
+        int[] profiles = new int[in.getInt()];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = ProfileKey.index(in.getLong());
+        }
+        long[] sampleCounts = new long[ProfileKey.COUNT];
+        for (int p : profiles) {
+            sampleCounts[p] = in.getLong();
+        }
+        double[][] averages = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            averages[p] = getDoubles(in, strategies);
+        }
+        double[][] stdDevs = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            stdDevs[p] = getDoubles(in, strategies);
+        }
+        byte flags = version < 2 ? 0 : in.get();
+        if ((flags & INTERVALS) == 0) {
+            return new PayoffTable(profiles, sampleCounts, averages, stdDevs);
+        }
+        double[][] reducedAverages = null;
+        if ((flags & REDUCED_AVERAGES) != 0) {
+            reducedAverages = new double[ProfileKey.COUNT][];
+            for (int p : profiles) {
+                reducedAverages[p] = getDoubles(in, strategies);
+            }
+        }
+        double[][] lower = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            lower[p] = getDoubles(in, strategies);
+        }
+        double[][] upper = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            upper[p] = getDoubles(in, strategies);
+        }
+        return new PayoffTable(profiles, sampleCounts, averages, stdDevs, reducedAverages, lower, upper);
+    }
+
+    public static void writeCoefficients(File file, ControlVariateCoefficients coefficients) throws IOException {
+        if (!isBinaryName(file)) {
+            FileUtils.writeStringToFile(file, coefficients.toString());
+            return;
+        }
+        int units = coefficients.global().length;
+        int strategies = StrategyDictionary.size();
+        int strategySets = 0;
+        int profileSets = 0;
+        for (int s = 0; s < strategies; s++) {
+            if (coefficients.strategy(s) != null) {
+                strategySets++;
+            }
+            for (int p = 0; p < ProfileKey.COUNT; p++) {
+                if (coefficients.profile(p, s) != null) {
+                    profileSets++;
+                }
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(headerSize() + units * 8
+                + 2 + strategySets * (1 + units * 8) + 4 + profileSets * (9 + units * 8));
+        writeHeader(out, COEFFICIENTS);
+        putDoubles(out, coefficients.global());
+        out.putShort((short) strategySets);
+        for (int s = 0; s < strategies; s++) {
+            if (coefficients.strategy(s) != null) {
+                out.put((byte) s);
+            }
+        }
+        for (int s = 0; s < strategies; s++) {
+            if (coefficients.strategy(s) != null) {
+                putDoubles(out, coefficients.strategy(s));
+            }
+        }
+        // Profile sets in the text file's order, profile then strategy
+        out.putInt(profileSets);
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            for (int s = 0; s < strategies; s++) {
+                if (coefficients.profile(p, s) != null) {
+                    out.putLong(ProfileKey.key(p));
+                }
+            }
+        }
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            for (int s = 0; s < strategies; s++) {
+                if (coefficients.profile(p, s) != null) {
+                    out.put((byte) s);
+                }
+            }
+        }
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            for (int s = 0; s < strategies; s++) {
+                if (coefficients.profile(p, s) != null) {
+                    putDoubles(out, coefficients.profile(p, s));
+                }
+            }
+        }
+        FileUtils.writeByteArrayToFile(file, out.array());
+    }
+
+    /**
+     * Reads a binary coefficients file; see ControlVariateCoefficients.read()
+     * for either form.
+     */
+    static ControlVariateCoefficients readCoefficients(File file, int units) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+        expectKind(in, file, COEFFICIENTS);
+        ControlVariateCoefficients coefficients = new ControlVariateCoefficients(getDoubles(in, units));
+        int[] strategies = new int[in.getShort()];
+        for (int i = 0; i < strategies.length; i++) {
+            strategies[i] = in.get();
+        }
+        for (int i = 0; i < strategies.length; i++) {
+            coefficients.setStrategy(strategies[i], getDoubles(in, units));
+        }
+        int[] profiles = new int[in.getInt()];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = ProfileKey.index(in.getLong());
+        }
+        int[] profileStrategies = new int[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            profileStrategies[i] = in.get();
+        }
+        for (int i = 0; i < profiles.length; i++) {
+            coefficients.setProfile(profiles[i], profileStrategies[i], getDoubles(in, units));
+        }
+        return coefficients;
+    }
+
+    private static int headerSize() {
+        int size = 4 + 1 + 1 + 2 + 2 + 1;
+        for (int s = 0; s < StrategyDictionary.size(); s++) {
+            size += 1 + StrategyDictionary.name(s).length();
+        }
+        return size;
+    }
+
+    private static void writeHeader(ByteBuffer out, byte kind) {
+        MarketConfig market = MarketConfig.get();
+        out.putInt(MAGIC);
+        out.put(VERSION);
+        out.put(kind);
+        out.putShort((short) market.units());
+        out.putShort((short) ProfileKey.PLAYERS);
+        out.put((byte) StrategyDictionary.size());
+        for (int s = 0; s < StrategyDictionary.size(); s++) {
+            byte[] name = StrategyDictionary.name(s).getBytes(ASCII);
+            out.put((byte) name.length);
+            out.put(name);
+        }
+    }
+
+    /**
+     * Checks the header against the current market and returns the kind.
+     */
+    private static byte readHeader(ByteBuffer in, File file) throws IOException {
+        if (in.remaining() < 4 || in.getInt() != MAGIC) {
+            throw new IOException(file + " is not a binary intermediate file.");
+        }
+        byte version = in.get();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported intermediate file version " + version + " in " + file);
+        }
+        byte kind = in.get();
+        int units = in.getShort();
+        int players = in.getShort();
+        String[] strategies = new String[in.get() & 0xFF];
+        for (int s = 0; s < strategies.length; s++) {
+            byte[] name = new byte[in.get() & 0xFF];
+            in.get(name);
+            strategies[s] = new String(name, ASCII);
+        }
+        MarketConfig market = MarketConfig.get();
+        if (units != market.units() || players != ProfileKey.PLAYERS || strategies.length != StrategyDictionary.size()) {
+            throw new IOException(file + " is from a market of " + units + " units, " + players + " players and " + strategies.length + " strategies");
+        }
+        for (int s = 0; s < strategies.length; s++) {
+            if (!strategies[s].equals(StrategyDictionary.name(s))) {
+                throw new IOException(file + " has strategy " + strategies[s] + " where the market has " + StrategyDictionary.name(s));
+            }
+        }
+        return kind;
+    }
+
+    private static void expectKind(ByteBuffer in, File file, byte expected) throws IOException {
+        byte kind = readHeader(in, file);
+        if (kind != expected) {
+            throw new IOException(file + " holds intermediate kind " + kind + ", expecting " + expected);
+        }
+    }
+
+    private static void putDoubles(ByteBuffer out, double[] values) {
+        out.asDoubleBuffer().put(values);
+        out.position(out.position() + values.length * 8);
+    }
+
+    private static double[] getDoubles(ByteBuffer in, int count) {
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * 8);
+        return values;
+    }
+}
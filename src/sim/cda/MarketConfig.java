@@ -0,0 +1,196 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Properties;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The size of the CDA market the samples come from: agents per sample,
+ * repetitions, units per agent, the range of unit values and the strategies
+ * of its single role, with every AGENTS_PER_PLAYER agents of a strategy
+ * counting as one player of the game. It is loaded once, by get(), and
+ * shared by every stage, so the array sizes, the profile keys, the unit
+ * kernels and the game JSON header all follow it.
+ *
+ * The defaults are the 16-agent market of the original study. Another market
+ * is described in a properties file named by -Dsim.cda.market, e.g.
+ *
+ *   agents=32
+ *   agentsPerPlayer=4
+ *   reps=5
+ *   units=10
+ *   vMin=61
+ *   vMax=260
+ *   role=ALL
+ *   strategies=AA,GD,GDX,KAPLAN,RB,ZI,ZIBTQ,ZIP
+ *
+ * where any key left out keeps its default. Strategies are listed in
+ * alphabetical order.
+ *
+ * @author Augie
+ */
+public class MarketConfig {
+
+    public static final String PROPERTY = "sim.cda.market";
+    public static final int AGENTS = 16;
+    public static final int AGENTS_PER_PLAYER = 4;
+    public static final int REPS = 5;
+    public static final int UNITS = 10;
+    public static final int V_MIN = 61;
+    public static final int V_MAX = 260;
+    public static final String ROLE = "ALL";
+    public static final String[] STRATEGIES = {"AA", "GD", "GDX", "KAPLAN", "RB", "ZI", "ZIBTQ", "ZIP"};
+    private static MarketConfig market = null;
+    private final int agents;
+    private final int agentsPerPlayer;
+    private final int reps;
+    private final int units;
+    private final int vMin;
+    private final int vMax;
+    private final String role;
+    private final String[] strategies;
+    private final UnitKernels kernels;
+
+    public MarketConfig(int agents, int agentsPerPlayer, int reps, int units, int vMin, int vMax, String role, String[] strategies) {
+        if (agents <= 0 || agentsPerPlayer <= 0 || agents % agentsPerPlayer != 0) {
+            throw new IllegalArgumentException(agents + " agents can't be split into players of " + agentsPerPlayer + " agents");
+        }
+        if (reps <= 0 || units <= 0 || vMin >= vMax) {
+            throw new IllegalArgumentException("Not a market: " + reps + " repetitions, " + units + " units, values " + vMin + " to " + vMax);
+        }
+        if (strategies.length == 0) {
+            throw new IllegalArgumentException("No strategies");
+        }
+        for (int s = 1; s < strategies.length; s++) {
+            if (strategies[s - 1].compareTo(strategies[s]) >= 0) {
+                throw new IllegalArgumentException("Strategies are not in alphabetical order: " + strategies[s - 1] + ", " + strategies[s]);
+            }
+        }
+        this.agents = agents;
+        this.agentsPerPlayer = agentsPerPlayer;
+        this.reps = reps;
+        this.units = units;
+        this.vMin = vMin;
+        this.vMax = vMax;
+        this.role = role;
+        this.strategies = strategies.clone();
+        kernels = UnitKernels.create(units, vMin, vMax);
+    }
+
+    /**
+     * The market of this run, loaded from the file named by -Dsim.cda.market
+     * the first time it is asked for.
+     */
+    public static synchronized MarketConfig get() {
+        if (market == null) {
+            String path = System.getProperty(PROPERTY);
+            try {
+                market = path == null ? new MarketConfig(new Properties()) : load(new File(path));
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not load the market configuration " + path + ": " + e.getMessage(), e);
+            }
+        }
+        return market;
+    }
+
+    public static MarketConfig load(File file) throws Exception {
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = FileUtils.openInputStream(file);
+            properties.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return new MarketConfig(properties);
+    }
+
+    private MarketConfig(Properties properties) {
+        this(intProperty(properties, "agents", AGENTS),
+                intProperty(properties, "agentsPerPlayer", AGENTS_PER_PLAYER),
+                intProperty(properties, "reps", REPS),
+                intProperty(properties, "units", UNITS),
+                intProperty(properties, "vMin", V_MIN),
+                intProperty(properties, "vMax", V_MAX),
+                properties.getProperty("role", ROLE).trim(),
+                properties.containsKey("strategies") ? properties.getProperty("strategies").trim().split("\\s*,\\s*") : STRATEGIES);
+    }
+
+    private static int intProperty(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Agents in each sample.
+     */
+    public int agents() {
+        return agents;
+    }
+
+    public int agentsPerPlayer() {
+        return agentsPerPlayer;
+    }
+
+    /**
+     * Players in each profile of the game.
+     */
+    public int players() {
+        return agents / agentsPerPlayer;
+    }
+
+    public int reps() {
+        return reps;
+    }
+
+    public int units() {
+        return units;
+    }
+
+    public int vMin() {
+        return vMin;
+    }
+
+    public int vMax() {
+        return vMax;
+    }
+
+    public String role() {
+        return role;
+    }
+
+    public String[] strategies() {
+        return strategies.clone();
+    }
+
+    /**
+     * The unit kernels for this market's units and values.
+     */
+    public UnitKernels kernels() {
+        return kernels;
+    }
+
+    /**
+     * The "roles" entry of the game JSON header.
+     */
+    public String rolesJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\"roles\":[{\"name\":\"");
+        sb.append(role);
+        sb.append("\",\"count\":");
+        sb.append(players());
+        sb.append(",\"strategies\":[");
+        for (int s = 0; s < strategies.length; s++) {
+            if (s > 0) {
+                sb.append(",");
+            }
+            sb.append("\"");
+            sb.append(strategies[s]);
+            sb.append("\"");
+        }
+        sb.append("]}],");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs a directory of samples into a single PackedSampleStore file that the
+ * Calculate* stages can read in place of the directory.
+ *
+ * Transactions that the stages would throw away, because the buyer or seller
+ * already traded all of their units in that repetition, are dropped while
+ * packing. That bounds a repetition to agents * units / 2 transactions, which
+ * is the room each record has for them.
+ *
+ * @author Augie
+ */
+public class PackSamples {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            throw new Exception("Expecting 2 args: [samples directory] [packed output file]");
+        }
+
+        // The market the samples come from
+        MarketConfig market = MarketConfig.get();
+
+        File samplesDir = new File(args[0]);
+        if (!samplesDir.exists()) {
+            throw new Exception("Samples directory does not exist.");
+        }
+
+        File outputFile = new File(args[1]);
+        if (outputFile.exists()) {
+            throw new Exception("Output file already exists.");
+        }
+
+        int transactions = market.agents() * market.units() / 2;
+        int recordSize = PackedSampleStore.recordSize(market.agents(), market.units(), market.reps(), transactions);
+        List<String> strategies = new ArrayList<String>();
+        RandomAccessFile file = new RandomAccessFile(outputFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.position(PackedSampleStore.HEADER_SIZE);
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            // Units traded so far per agent ID in a repetition
+            Map<Integer, Integer> traded = new HashMap<Integer, Integer>();
+            int size = 0;
+            for (Sample sample : Samples.open(samplesDir)) {
+                if (sample.agentCount() > market.agents() || sample.repetitionCount() > market.reps()) {
+                    throw new Exception("Sample " + size + " does not fit in " + market.agents() + " agents and " + market.reps() + " repetitions");
+                }
+                Arrays.fill(record.array(), (byte) 0);
+                record.clear();
+
+                // Agents
+                record.put((byte) sample.agentCount());
+                record.put((byte) sample.repetitionCount());
+                for (int i = 0; i < market.agents(); i++) {
+                    record.putShort(i < sample.agentCount() ? (short) sample.agentID(i) : 0);
+                }
+                for (int i = 0; i < market.agents(); i++) {
+                    int ordinal = 0;
+                    if (i < sample.agentCount()) {
+                        ordinal = strategies.indexOf(sample.agentStrategy(i));
+                        if (ordinal < 0) {
+                            ordinal = strategies.size();
+                            strategies.add(sample.agentStrategy(i));
+                        }
+                    }
+                    record.put((byte) ordinal);
+                }
+                for (int i = 0; i < market.agents(); i++) {
+                    record.putDouble(i < sample.agentCount() ? sample.agentScore(i) : 0);
+                }
+                for (int i = 0; i < market.agents(); i++) {
+                    if (i < sample.agentCount() && sample.valueCount(i) != market.units()) {
+                        throw new Exception("Sample " + size + " agent " + sample.agentID(i) + " has " + sample.valueCount(i) + " values");
+                    }
+                    for (int u = 0; u < market.units(); u++) {
+                        record.putShort(i < sample.agentCount() ? (short) sample.agentValue(i, u) : 0);
+                    }
+                }
+
+                // Repetitions
+                int repetitionIDs = record.position();
+                int transactionCounts = repetitionIDs + market.reps();
+                int transactionsStart = transactionCounts + 2 * market.reps();
+                for (int r = 0; r < sample.repetitionCount(); r++) {
+                    record.put(repetitionIDs + r, (byte) sample.repetitionID(r));
+                    int offset = transactionsStart + 6 * transactions * r;
+                    int count = 0;
+                    traded.clear();
+                    for (int t = 0; t < sample.transactionCount(r); t++) {
+                        int buyerID = sample.transactionBuyerID(r, t);
+                        int sellerID = sample.transactionSellerID(r, t);
+                        int buyerTraded = traded.containsKey(buyerID) ? traded.get(buyerID) : 0;
+                        int sellerTraded = traded.containsKey(sellerID) ? traded.get(sellerID) : 0;
+                        if (buyerTraded == market.units() || sellerTraded == market.units()) {
+                            continue;
+                        }
+                        traded.put(buyerID, buyerTraded + 1);
+                        traded.put(sellerID, sellerTraded + 1);
+                        record.putShort(offset + 2 * count, (short) buyerID);
+                        record.putShort(offset + 2 * (transactions + count), (short) sellerID);
+                        record.putShort(offset + 2 * (2 * transactions + count), (short) sample.transactionPrice(r, t));
+                        count++;
+                    }
+                    record.putShort(transactionCounts + 2 * r, (short) count);
+                }
+
+                record.clear();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                size++;
+            }
+
+            // Now that the sample count and strategies are known
+            ByteBuffer header = ByteBuffer.wrap(PackedSampleStore.header(market.agents(), market.units(), market.reps(), transactions, size, strategies));
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            System.out.println("Packed " + size + " samples into " + channel.size() + " bytes");
+        } finally {
+            file.close();
+        }
+    }
+}
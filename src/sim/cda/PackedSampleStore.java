@@ -0,0 +1,328 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+
+/**
+ * The whole sample corpus packed into one file of fixed-size records (see
+ * PackSamples), read through memory-mapped buffers. The accessors read
+ * straight out of the mapping, so scanning the store does not create any
+ * objects per sample.
+ *
+ * The file starts with a HEADER_SIZE byte header:
+ *
+ *   int     magic
+ *   int     version
+ *   int     agents per sample P
+ *   int     units per agent U
+ *   int     repetitions per sample R
+ *   int     transactions per repetition T
+ *   int     # samples
+ *   int     # strategies S, then S strategy names (modified UTF-8)
+ *
+ * followed by one record per sample, with room for P agents and R
+ * repetitions of T transactions:
+ *
+ *   byte    # agents
+ *   byte    # repetitions
+ *   short   agent IDs [P]
+ *   byte    strategy ordinals [P]
+ *   double  scores [P]
+ *   short   values [P * U]
+ *   byte    repetition IDs [R]
+ *   short   transaction counts [R]
+ *   per repetition: short buyer IDs [T], seller IDs [T], prices [T]
+ *
+ * @author Augie
+ */
+public class PackedSampleStore implements SampleSource {
+
+    public static final String EXTENSION = ".pack";
+    public static final int MAGIC = 0x43444150;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 1024;
+    private final int agents;
+    private final int units;
+    private final int repetitions;
+    private final int transactions;
+    private final int size;
+    private final String[] strategies;
+    // StrategyDictionary ordinals of the strategies above
+    private final int[] strategyOrdinals;
+    // Record layout
+    private final int recordSize;
+    private final int agentIDsOffset;
+    private final int strategiesOffset;
+    private final int scoresOffset;
+    private final int valuesOffset;
+    private final int repetitionIDsOffset;
+    private final int transactionCountsOffset;
+    private final int transactionsOffset;
+    // Mappings of whole records, each less than 2GB
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+
+    public PackedSampleStore(File packedFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(packedFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a packed sample file.");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported packed sample version " + version);
+            }
+            agents = header.getInt();
+            units = header.getInt();
+            repetitions = header.getInt();
+            transactions = header.getInt();
+            size = header.getInt();
+            strategies = new String[header.getInt()];
+            for (int i = 0; i < strategies.length; i++) {
+                byte[] name = new byte[header.getShort() & 0xFFFF];
+                header.get(name);
+                strategies[i] = new String(name, "UTF-8");
+            }
+            strategyOrdinals = new int[strategies.length];
+            for (int i = 0; i < strategies.length; i++) {
+                strategyOrdinals[i] = StrategyDictionary.ordinal(strategies[i]);
+            }
+
+            agentIDsOffset = 2;
+            strategiesOffset = agentIDsOffset + 2 * agents;
+            scoresOffset = strategiesOffset + agents;
+            valuesOffset = scoresOffset + 8 * agents;
+            repetitionIDsOffset = valuesOffset + 2 * agents * units;
+            transactionCountsOffset = repetitionIDsOffset + repetitions;
+            transactionsOffset = transactionCountsOffset + 2 * repetitions;
+            recordSize = recordSize(agents, units, repetitions, transactions);
+
+            recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            int segmentCount = (size + recordsPerSegment - 1) / recordsPerSegment;
+            segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                int records = Math.min(recordsPerSegment, size - i * recordsPerSegment);
+                long position = HEADER_SIZE + (long) i * recordsPerSegment * recordSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) records * recordSize);
+            }
+        } finally {
+            // The mappings stay valid after the file is closed
+            file.close();
+        }
+    }
+
+    public static int recordSize(int agents, int units, int repetitions, int transactions) {
+        return 2 + 2 * agents + agents + 8 * agents + 2 * agents * units + repetitions + 2 * repetitions + 6 * repetitions * transactions;
+    }
+
+    public static boolean isPacked(File file) {
+        return file.isFile() && file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int agentCount(int sample) {
+        return segment(sample).get(base(sample)) & 0xFF;
+    }
+
+    public int agentID(int sample, int agent) {
+        return segment(sample).getShort(base(sample) + agentIDsOffset + 2 * agent);
+    }
+
+    private int storedStrategy(int sample, int agent) {
+        return segment(sample).get(base(sample) + strategiesOffset + agent) & 0xFF;
+    }
+
+    public String agentStrategy(int sample, int agent) {
+        return strategies[storedStrategy(sample, agent)];
+    }
+
+    public int agentStrategyOrdinal(int sample, int agent) {
+        return strategyOrdinals[storedStrategy(sample, agent)];
+    }
+
+    public double agentScore(int sample, int agent) {
+        return segment(sample).getDouble(base(sample) + scoresOffset + 8 * agent);
+    }
+
+    public int valueCount(int sample, int agent) {
+        return units;
+    }
+
+    public int agentValue(int sample, int agent, int unit) {
+        return segment(sample).getShort(base(sample) + valuesOffset + 2 * (agent * units + unit));
+    }
+
+    public int repetitionCount(int sample) {
+        return segment(sample).get(base(sample) + 1) & 0xFF;
+    }
+
+    public int repetitionID(int sample, int repetition) {
+        return segment(sample).get(base(sample) + repetitionIDsOffset + repetition) & 0xFF;
+    }
+
+    public int transactionCount(int sample, int repetition) {
+        return segment(sample).getShort(base(sample) + transactionCountsOffset + 2 * repetition);
+    }
+
+    public int transactionBuyerID(int sample, int repetition, int transaction) {
+        return segment(sample).getShort(base(sample) + transactionsOffset + 2 * (3 * transactions * repetition + transaction));
+    }
+
+    public int transactionSellerID(int sample, int repetition, int transaction) {
+        return segment(sample).getShort(base(sample) + transactionsOffset + 2 * (3 * transactions * repetition + transactions + transaction));
+    }
+
+    public int transactionPrice(int sample, int repetition, int transaction) {
+        return segment(sample).getShort(base(sample) + transactionsOffset + 2 * (3 * transactions * repetition + 2 * transactions + transaction));
+    }
+
+    private ByteBuffer segment(int sample) {
+        return segments[sample / recordsPerSegment];
+    }
+
+    private int base(int sample) {
+        return (sample % recordsPerSegment) * recordSize;
+    }
+
+    /**
+     * Iterates with a single flyweight that is moved from record to record.
+     */
+    public Iterator<Sample> iterator() {
+        return new Iterator<Sample>() {
+
+            private final PackedSample sample = new PackedSample();
+
+            public boolean hasNext() {
+                return sample.index + 1 < size;
+            }
+
+            public Sample next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                sample.index++;
+                return sample;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Spliterator<Sample> spliterator() {
+        return new RecordSpliterator(0, size);
+    }
+
+    private class RecordSpliterator extends SampleRangeSpliterator {
+
+        private final PackedSample sample = new PackedSample();
+
+        RecordSpliterator(int from, int to) {
+            super(from, to);
+        }
+
+        protected Sample read(int index) {
+            sample.index = index;
+            return sample;
+        }
+
+        protected SampleRangeSpliterator range(int from, int to) {
+            return new RecordSpliterator(from, to);
+        }
+    }
+
+    /**
+     * Sample view onto one record of the store.
+     */
+    public class PackedSample implements Sample {
+
+        private int index = -1;
+
+        public int agentCount() {
+            return PackedSampleStore.this.agentCount(index);
+        }
+
+        public int agentID(int agent) {
+            return PackedSampleStore.this.agentID(index, agent);
+        }
+
+        public String agentStrategy(int agent) {
+            return PackedSampleStore.this.agentStrategy(index, agent);
+        }
+
+        public int agentStrategyOrdinal(int agent) {
+            return PackedSampleStore.this.agentStrategyOrdinal(index, agent);
+        }
+
+        public double agentScore(int agent) {
+            return PackedSampleStore.this.agentScore(index, agent);
+        }
+
+        public int valueCount(int agent) {
+            return PackedSampleStore.this.valueCount(index, agent);
+        }
+
+        public int agentValue(int agent, int unit) {
+            return PackedSampleStore.this.agentValue(index, agent, unit);
+        }
+
+        public int repetitionCount() {
+            return PackedSampleStore.this.repetitionCount(index);
+        }
+
+        public int repetitionID(int repetition) {
+            return PackedSampleStore.this.repetitionID(index, repetition);
+        }
+
+        public int transactionCount(int repetition) {
+            return PackedSampleStore.this.transactionCount(index, repetition);
+        }
+
+        public int transactionBuyerID(int repetition, int transaction) {
+            return PackedSampleStore.this.transactionBuyerID(index, repetition, transaction);
+        }
+
+        public int transactionSellerID(int repetition, int transaction) {
+            return PackedSampleStore.this.transactionSellerID(index, repetition, transaction);
+        }
+
+        public int transactionPrice(int repetition, int transaction) {
+            return PackedSampleStore.this.transactionPrice(index, repetition, transaction);
+        }
+    }
+
+    /**
+     * Encodes the file header, for PackSamples.
+     */
+    static byte[] header(int agents, int units, int repetitions, int transactions, int size, List<String> strategies) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(agents);
+        header.putInt(units);
+        header.putInt(repetitions);
+        header.putInt(transactions);
+        header.putInt(size);
+        header.putInt(strategies.size());
+        for (String strategy : strategies) {
+            byte[] name = strategy.getBytes("UTF-8");
+            header.putShort((short) name.length);
+            header.put(name);
+        }
+        return header.array();
+    }
+}
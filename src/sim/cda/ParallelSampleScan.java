@@ -0,0 +1,119 @@
+package sim.cda;
+
+import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Runs per-sample work over a fork-join pool. The samples are halved until a
+ * piece has at most THRESHOLD samples, each piece is folded into its own
+ * ProfileAccumulator, and the accumulators are merged left to right. The
+ * pieces and the merge order only depend on the number of samples, so the
+ * results are identical for any number of threads. The pool size can be set
+ * with -Djava.util.concurrent.ForkJoinPool.common.parallelism.
+ *
+ * Samples of unknown number, such as a SampleArchive, are split into batches
+ * of THRESHOLD samples as they arrive instead, and the batches are merged in
+ * order. Once enough batches are queued, the splitting thread scans the next
+ * one itself, so no more than a few batches are read ahead.
+ *
+ * The accumulators can keep every value added (see ProfileAccumulator), in
+ * which case they come out in sample order as well.
+ *
+ * @author Augie
+ */
+public class ParallelSampleScan extends RecursiveTask<ProfileAccumulator> {
+
+    private static final long serialVersionUID = 1L;
+    public static final int THRESHOLD = 256;
+    // Batches queued for other threads before the splitting thread helps out
+    public static final int MAX_QUEUED = 3;
+
+    /**
+     * What to do with each sample.
+     */
+    public interface Accumulation {
+
+        public void accumulate(Sample sample, ProfileAccumulator accumulator) throws Exception;
+    }
+
+    private final Spliterator<Sample> samples;
+    private final Accumulation accumulation;
+    private final boolean keepValues;
+
+    private ParallelSampleScan(Spliterator<Sample> samples, Accumulation accumulation, boolean keepValues) {
+        this.samples = samples;
+        this.accumulation = accumulation;
+        this.keepValues = keepValues;
+    }
+
+    public static ProfileAccumulator scan(SampleSource samples, Accumulation accumulation) {
+        return scan(samples, accumulation, false);
+    }
+
+    public static ProfileAccumulator scan(SampleSource samples, Accumulation accumulation, boolean keepValues) {
+        return ForkJoinPool.commonPool().invoke(new ParallelSampleScan(samples.spliterator(), accumulation, keepValues));
+    }
+
+    protected ProfileAccumulator compute() {
+        if (!samples.hasCharacteristics(Spliterator.SIZED)) {
+            return computeBatches();
+        }
+        if (samples.estimateSize() > THRESHOLD) {
+            Spliterator<Sample> prefix = samples.trySplit();
+            if (prefix != null) {
+                ParallelSampleScan left = new ParallelSampleScan(prefix, accumulation, keepValues);
+                ParallelSampleScan right = new ParallelSampleScan(samples, accumulation, keepValues);
+                left.fork();
+                ProfileAccumulator rightAccumulator = right.compute();
+                ProfileAccumulator leftAccumulator = left.join();
+                leftAccumulator.merge(rightAccumulator);
+                return leftAccumulator;
+            }
+        }
+        return accumulate(samples);
+    }
+
+    private ProfileAccumulator computeBatches() {
+        ProfileAccumulator accumulator = new ProfileAccumulator(keepValues);
+        LinkedList<ParallelSampleScan> batches = new LinkedList<ParallelSampleScan>();
+        Spliterator<Sample> batch;
+        while ((batch = samples.trySplit()) != null) {
+            ParallelSampleScan task = new ParallelSampleScan(batch, accumulation, keepValues);
+            if (getSurplusQueuedTaskCount() >= MAX_QUEUED) {
+                task.invoke();
+            } else {
+                task.fork();
+            }
+            batches.add(task);
+            // Merge the finished batches at the front
+            while (!batches.isEmpty() && batches.getFirst().isDone()) {
+                accumulator.merge(batches.removeFirst().join());
+            }
+        }
+        while (!batches.isEmpty()) {
+            accumulator.merge(batches.removeFirst().join());
+        }
+        accumulator.merge(accumulate(samples));
+        return accumulator;
+    }
+
+    private ProfileAccumulator accumulate(Spliterator<Sample> samples) {
+        final ProfileAccumulator accumulator = new ProfileAccumulator(keepValues);
+        samples.forEachRemaining(new Consumer<Sample>() {
+
+            public void accept(Sample sample) {
+                try {
+                    accumulation.accumulate(sample, accumulator);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        return accumulator;
+    }
+}
@@ -0,0 +1,207 @@
+package sim.cda;
+
+/**
+ * An average payoffs file: the sample count of each profile and the average
+ * payoff and standard deviation of each of its strategies, in arrays indexed
+ * by ProfileKey index and strategy ordinal, null for profiles not in the
+ * file. Profiles keep the order they were written in.
+ *
+ * The text form has the number of profiles on the first line, then for each
+ * profile its ID, sample count and number of strategies, and for each of
+ * those strategies its name, player count, payoff and standard deviation,
+ * one per line. A table can also carry, for each payoff, the reduced-variance
+ * average and its confidence interval (see Bootstrap). These are extra fields
+ * after the standard deviation on the same line, separated by tabs, and the
+ * payoff itself is unchanged.
+ *
+ * @author Augie
+ */
+public class PayoffTable {
+
+    private final int[] profiles;
+    private final long[] sampleCounts;
+    private final double[][] averages;
+    private final double[][] stdDevs;
+    // Null without intervals
+    private final double[][] reducedAverages;
+    private final double[][] lower;
+    private final double[][] upper;
+
+    public PayoffTable(int[] profiles, long[] sampleCounts, double[][] averages, double[][] stdDevs) {
+        this(profiles, sampleCounts, averages, stdDevs, null, null, null);
+    }
+
+    /**
+     * With the reduced-variance averages and their intervals, which can also
+     * leave the averages out (null).
+     */
+    public PayoffTable(int[] profiles, long[] sampleCounts, double[][] averages, double[][] stdDevs, double[][] reducedAverages, double[][] lower, double[][] upper) {
+        this.profiles = profiles;
+        this.sampleCounts = sampleCounts;
+        this.averages = averages;
+        this.stdDevs = stdDevs;
+        this.reducedAverages = reducedAverages;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * The profiles of the file, in order.
+     */
+    public int[] profiles() {
+        return profiles;
+    }
+
+    /**
+     * Sample counts indexed by profile.
+     */
+    public long[] sampleCounts() {
+        return sampleCounts;
+    }
+
+    /**
+     * Average payoffs indexed by profile and strategy.
+     */
+    public double[][] averages() {
+        return averages;
+    }
+
+    /**
+     * Standard deviations indexed by profile and strategy.
+     */
+    public double[][] stdDevs() {
+        return stdDevs;
+    }
+
+    public boolean hasIntervals() {
+        return lower != null;
+    }
+
+    /**
+     * Reduced-variance averages the intervals are of, indexed by profile and
+     * strategy, or null.
+     */
+    public double[][] reducedAverages() {
+        return reducedAverages;
+    }
+
+    /**
+     * Lower bounds of the payoffs' confidence intervals, or null.
+     */
+    public double[][] lower() {
+        return lower;
+    }
+
+    /**
+     * Upper bounds of the payoffs' confidence intervals, or null.
+     */
+    public double[][] upper() {
+        return upper;
+    }
+
+    /**
+     * Parses the text form.
+     */
+    public static PayoffTable parse(String text) {
+        String[] split = text.split("\n");
+        int profileCount = Integer.valueOf(split[0].trim());
+        int[] profiles = new int[profileCount];
+        long[] sampleCounts = new long[ProfileKey.COUNT];
+        double[][] averages = new double[ProfileKey.COUNT][];
+        double[][] stdDevs = new double[ProfileKey.COUNT][];
+        double[][] reducedAverages = null;
+        double[][] lower = null;
+        double[][] upper = null;
+        int index = 1;
+        for (int i = 0; i < profileCount; i++) {
+            int profile = ProfileKey.index(ProfileKey.parse(split[index++]));
+            profiles[i] = profile;
+            sampleCounts[profile] = Long.valueOf(split[index++].trim());
+            int strategyCount = Integer.valueOf(split[index++].trim());
+            averages[profile] = new double[StrategyDictionary.size()];
+            stdDevs[profile] = new double[StrategyDictionary.size()];
+            for (int j = 0; j < strategyCount; j++) {
+                int strategy = StrategyDictionary.ordinal(split[index].trim());
+                averages[profile][strategy] = Double.valueOf(split[index + 2].trim());
+                // Std dev, then maybe the reduced average, lower and upper
+                String[] fields = split[index + 3].trim().split("\t");
+                stdDevs[profile][strategy] = Double.valueOf(fields[0]);
+                if (fields.length >= 3) {
+                    if (lower == null) {
+                        lower = new double[ProfileKey.COUNT][];
+                        upper = new double[ProfileKey.COUNT][];
+                    }
+                    if (lower[profile] == null) {
+                        lower[profile] = new double[StrategyDictionary.size()];
+                        upper[profile] = new double[StrategyDictionary.size()];
+                    }
+                    lower[profile][strategy] = Double.valueOf(fields[fields.length - 2]);
+                    upper[profile][strategy] = Double.valueOf(fields[fields.length - 1]);
+                }
+                if (fields.length == 4) {
+                    if (reducedAverages == null) {
+                        reducedAverages = new double[ProfileKey.COUNT][];
+                    }
+                    if (reducedAverages[profile] == null) {
+                        reducedAverages[profile] = new double[StrategyDictionary.size()];
+                    }
+                    reducedAverages[profile][strategy] = Double.valueOf(fields[1]);
+                }
+                index += 4;
+            }
+        }
+        return new PayoffTable(profiles, sampleCounts, averages, stdDevs, reducedAverages, lower, upper);
+    }
+
+    /**
+     * The text form.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        // # Profiles
+        sb.append(profiles.length);
+        sb.append("\n");
+        for (int p : profiles) {
+            long key = ProfileKey.key(p);
+            // Profile ID
+            sb.append(ProfileKey.id(p));
+            sb.append("\n");
+            // Sample count
+            sb.append(sampleCounts[p]);
+            sb.append("\n");
+            // Number of strategies
+            sb.append(ProfileKey.strategyCount(key));
+            sb.append("\n");
+            for (int s = 0; s < StrategyDictionary.size(); s++) {
+                if (ProfileKey.count(key, s) == 0) {
+                    continue;
+                }
+                // Name
+                sb.append(StrategyDictionary.name(s));
+                sb.append("\n");
+                // Count
+                sb.append(ProfileKey.count(key, s));
+                sb.append("\n");
+                // Payoff
+                sb.append(averages[p][s]);
+                sb.append("\n");
+                // Std Dev
+                sb.append(stdDevs[p][s]);
+                if (reducedAverages != null) {
+                    // Reduced-variance average
+                    sb.append("\t");
+                    sb.append(reducedAverages[p][s]);
+                }
+                if (lower != null) {
+                    // Confidence interval
+                    sb.append("\t");
+                    sb.append(lower[p][s]);
+                    sb.append("\t");
+                    sb.append(upper[p][s]);
+                }
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
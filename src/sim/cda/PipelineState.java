@@ -0,0 +1,480 @@
+package sim.cda;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Running sums over every sample seen so far, enough to rebuild the output
+ * of every stage without going back to the samples: the unit value sums and
+ * cross products for the control variates, and per profile and strategy the
+ * sums and sums of squares of the per-sample payoff, score and normalized
+ * unit value means. Adding a sample only touches these sums, so a corpus can
+ * be brought up to date by adding its new samples. The names of the samples
+ * that have been added are kept as well, so none is added twice.
+ *
+ * The state file records the market it was summed over, down to the
+ * strategy names, and is only read back into the same market.
+ *
+ * Because the variances are rebuilt from sums of squares instead of from
+ * deviations around the final means, the results can differ from the
+ * two-pass stages in the last digits.
+ *
+ * @author Augie
+ */
+public class PipelineState {
+
+    public static final int MAGIC = 0x43444154;
+    public static final int VERSION = 2;
+    private final int agents;
+    private final int agentsPerPlayer;
+    private final int reps;
+    private final int units;
+    private final int vMin;
+    private final int vMax;
+    private final UnitKernels kernels;
+    private final int strategies = StrategyDictionary.size();
+    private final Set<String> sampleNames = new HashSet<String>();
+    // Over every agent of every sample
+    private long agentCount = 0;
+    private final double[] normalizedValueSums;
+    private final double[] valueSums;
+    private final double[] valueProducts;
+    private final double[] payoffNormalizedValueProducts;
+    private double payoffSum = 0;
+    private double payoffSquareSum = 0;
+    // Per profile, then per strategy (and unit)
+    private final long[] sampleCounts = new long[ProfileKey.COUNT];
+    private final long[][] agentCounts = new long[ProfileKey.COUNT][];
+    private final double[][] agentPayoffSums = new double[ProfileKey.COUNT][];
+    private final double[][] agentNormalizedValueSums = new double[ProfileKey.COUNT][];
+    private final double[][] payoffMeanSums = new double[ProfileKey.COUNT][];
+    private final double[][] scoreMeanSums = new double[ProfileKey.COUNT][];
+    private final double[][] scoreMeanSquareSums = new double[ProfileKey.COUNT][];
+    private final double[][] normalizedMeanSums = new double[ProfileKey.COUNT][];
+    private final double[][] normalizedMeanProducts = new double[ProfileKey.COUNT][];
+
+    public PipelineState(int agents, int agentsPerPlayer, int reps, int units, int vMin, int vMax) {
+        this.agents = agents;
+        this.agentsPerPlayer = agentsPerPlayer;
+        this.reps = reps;
+        this.units = units;
+        this.vMin = vMin;
+        this.vMax = vMax;
+        kernels = UnitKernels.create(units, vMin, vMax);
+        normalizedValueSums = new double[units];
+        valueSums = new double[units];
+        valueProducts = new double[units * units];
+        payoffNormalizedValueProducts = new double[units];
+    }
+
+    private void allocate(int profile) {
+        agentCounts[profile] = new long[strategies];
+        agentPayoffSums[profile] = new double[strategies];
+        agentNormalizedValueSums[profile] = new double[strategies * units];
+        payoffMeanSums[profile] = new double[strategies];
+        scoreMeanSums[profile] = new double[strategies];
+        scoreMeanSquareSums[profile] = new double[strategies];
+        normalizedMeanSums[profile] = new double[strategies * units];
+        normalizedMeanProducts[profile] = new double[strategies * units * units];
+    }
+
+    public boolean contains(String sampleName) {
+        return sampleNames.contains(sampleName);
+    }
+
+    public int size() {
+        return sampleNames.size();
+    }
+
+    public void add(String sampleName, Sample sample) {
+        // Transactions that count, per repetition and agent
+        TransactionTable transactions = TransactionTable.get(reps, agents, units);
+        transactions.fill(sample);
+
+        int profile = ProfileKey.index(ProfileKey.of(sample));
+        if (agentCounts[profile] == null) {
+            allocate(profile);
+        }
+
+        // Per strategy sums over this sample's agents
+        int[] counts = new int[strategies];
+        double[] payoffs = new double[strategies];
+        double[] scores = new double[strategies];
+        double[] normalizedValues = new double[strategies * units];
+        int[] value = new int[units];
+        double[] normalizedValue = new double[units];
+        for (int i = 0; i < sample.agentCount(); i++) {
+            int id = sample.agentID(i);
+            int slot = transactions.slot(id);
+            int strategy = sample.agentStrategyOrdinal(i);
+
+            // Is this agent a buyer?
+            boolean isBuyer = sample.agentValue(i, 0) > sample.agentValue(i, sample.valueCount(i) - 1);
+
+            // Average payoff per repetition
+            double payoff = 0;
+            for (int r = 0; r < reps; r++) {
+                for (int p = 0; p < transactions.count(r, slot); p++) {
+                    int price = transactions.price(r, slot, p);
+                    if (isBuyer) {
+                        payoff += sample.agentValue(i, p) - price;
+                    } else {
+                        payoff += price - sample.agentValue(i, p);
+                    }
+                }
+            }
+            payoff /= (double) reps;
+
+            for (int u = 0; u < units; u++) {
+                value[u] = sample.agentValue(i, u);
+            }
+            kernels.normalize(value, isBuyer, normalizedValue);
+
+            // Whole corpus
+            agentCount++;
+            payoffSum += payoff;
+            payoffSquareSum += payoff * payoff;
+            for (int q = 0; q < units; q++) {
+                normalizedValueSums[q] += normalizedValue[q];
+                valueSums[q] += sample.agentValue(i, q);
+                payoffNormalizedValueProducts[q] += payoff * normalizedValue[q];
+                for (int r = 0; r < units; r++) {
+                    valueProducts[q * units + r] += sample.agentValue(i, q) * (double) sample.agentValue(i, r);
+                }
+            }
+
+            // This profile and strategy
+            agentCounts[profile][strategy]++;
+            agentPayoffSums[profile][strategy] += payoff;
+            for (int u = 0; u < units; u++) {
+                agentNormalizedValueSums[profile][strategy * units + u] += normalizedValue[u];
+                normalizedValues[strategy * units + u] += normalizedValue[u];
+            }
+            counts[strategy]++;
+            payoffs[strategy] += payoff;
+            scores[strategy] += sample.agentScore(i);
+        }
+
+        // Per strategy means of this sample
+        for (int s = 0; s < strategies; s++) {
+            if (counts[s] == 0) {
+                continue;
+            }
+            double score = scores[s] / (double) counts[s];
+            payoffMeanSums[profile][s] += payoffs[s] / (double) counts[s];
+            scoreMeanSums[profile][s] += score;
+            scoreMeanSquareSums[profile][s] += score * score;
+            for (int q = 0; q < units; q++) {
+                double mean = normalizedValues[s * units + q] / (double) counts[s];
+                normalizedMeanSums[profile][s * units + q] += mean;
+                for (int r = 0; r < units; r++) {
+                    normalizedMeanProducts[profile][(s * units + q) * units + r] += mean * (normalizedValues[s * units + r] / (double) counts[s]);
+                }
+            }
+        }
+        sampleCounts[profile]++;
+        sampleNames.add(sampleName);
+    }
+
+    /**
+     * The ProfileKey indices of the profiles that have samples.
+     */
+    public int[] profiles() {
+        int count = 0;
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            if (sampleCounts[p] > 0) {
+                count++;
+            }
+        }
+        int[] profiles = new int[count];
+        count = 0;
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            if (sampleCounts[p] > 0) {
+                profiles[count++] = p;
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * Sample counts indexed by profile.
+     */
+    public long[] sampleCounts() {
+        return sampleCounts;
+    }
+
+    public long agentCount() {
+        return agentCount;
+    }
+
+    /**
+     * Average normalized value of each unit over all agents.
+     */
+    public double[] avgNormalizedUnitValues() {
+        double[] avgs = new double[units];
+        for (int u = 0; u < units; u++) {
+            avgs[u] = normalizedValueSums[u] / agentCount;
+        }
+        return avgs;
+    }
+
+    /**
+     * Average over the profile's samples of each strategy's mean payoff.
+     */
+    public double[] payoffAverages(int profile) {
+        double[] avgs = new double[strategies];
+        for (int s = 0; s < strategies; s++) {
+            avgs[s] = payoffMeanSums[profile][s] / (double) sampleCounts[profile];
+        }
+        return avgs;
+    }
+
+    /**
+     * Std dev of each strategy's mean score around the given payoff averages,
+     * as the average payoffs stage computes it.
+     */
+    public double[] scoreStdDevs(int profile, double[] payoffAvgs) {
+        double n = sampleCounts[profile];
+        double[] stdDevs = new double[strategies];
+        for (int s = 0; s < strategies; s++) {
+            double sum = scoreMeanSquareSums[profile][s] - 2 * payoffAvgs[s] * scoreMeanSums[profile][s] + n * payoffAvgs[s] * payoffAvgs[s];
+            stdDevs[s] = Math.sqrt(Math.max(0, sum) / n);
+        }
+        return stdDevs;
+    }
+
+    /**
+     * Covariance of each agent's payoff, less its profile's strategy average,
+     * with each normalized unit value.
+     */
+    public double[] sigmaData(double[][] payoffAvgs, double[] avgNormalizedUnitValue) {
+        double[] sigmaData = new double[units];
+        for (int u = 0; u < units; u++) {
+            // Sum over all agents of payoff * (normalized value - average)
+            sigmaData[u] = payoffNormalizedValueProducts[u] - avgNormalizedUnitValue[u] * payoffSum;
+        }
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            if (sampleCounts[p] == 0) {
+                continue;
+            }
+            for (int s = 0; s < strategies; s++) {
+                for (int u = 0; u < units; u++) {
+                    // Less the profile's strategy average times (normalized value - average)
+                    sigmaData[u] -= payoffAvgs[p][s] * (agentNormalizedValueSums[p][s * units + u] - agentCounts[p][s] * avgNormalizedUnitValue[u]);
+                }
+            }
+        }
+        for (int u = 0; u < units; u++) {
+            sigmaData[u] /= (agentCount - 1);
+        }
+        return sigmaData;
+    }
+
+    /**
+     * Covariance of the raw unit values around the average normalized unit
+     * values, as the coefficients stage computes it.
+     */
+    public double[][] SigmaData(double[] avgNormalizedUnitValue) {
+        double[][] SigmaData = new double[units][units];
+        for (int q = 0; q < units; q++) {
+            for (int r = 0; r < units; r++) {
+                SigmaData[q][r] = (valueProducts[q * units + r]
+                        - avgNormalizedUnitValue[r] * valueSums[q]
+                        - avgNormalizedUnitValue[q] * valueSums[r]
+                        + agentCount * avgNormalizedUnitValue[q] * avgNormalizedUnitValue[r]) / (agentCount - 1);
+            }
+        }
+        return SigmaData;
+    }
+
+    /**
+     * Average over the profile's samples of each strategy's reduced-variance
+     * payoff, starting from the given payoff averages.
+     */
+    public double[] redVarAverages(int profile, double[] payoffAvgs, double[] conVarCoeffs, double[] avgNormalizedUnitValue) {
+        double[] avgs = new double[strategies];
+        double[] normalizedMeans = new double[units];
+        for (int s = 0; s < strategies; s++) {
+            for (int u = 0; u < units; u++) {
+                normalizedMeans[u] = normalizedMeanSums[profile][s * units + u] / (double) sampleCounts[profile];
+            }
+            avgs[s] = kernels.reduce(payoffAvgs[s], conVarCoeffs, normalizedMeans, avgNormalizedUnitValue);
+        }
+        return avgs;
+    }
+
+    /**
+     * Std dev of each strategy's reduced-variance payoff. Within a profile
+     * the reduced payoffs only vary with the normalized unit value means, so
+     * this is sqrt(c' Cov c) with Cov their covariance over the samples.
+     */
+    public double[] redVarStdDevs(int profile, double[] conVarCoeffs) {
+        double n = sampleCounts[profile];
+        double[] stdDevs = new double[strategies];
+        for (int s = 0; s < strategies; s++) {
+            double variance = 0;
+            for (int q = 0; q < units; q++) {
+                double meanQ = normalizedMeanSums[profile][s * units + q] / n;
+                for (int r = 0; r < units; r++) {
+                    double meanR = normalizedMeanSums[profile][s * units + r] / n;
+                    double covariance = normalizedMeanProducts[profile][(s * units + q) * units + r] / n - meanQ * meanR;
+                    variance += conVarCoeffs[q] * covariance * conVarCoeffs[r];
+                }
+            }
+            stdDevs[s] = Math.sqrt(Math.max(0, variance));
+        }
+        return stdDevs;
+    }
+
+    /**
+     * Sample variance of the agents' payoffs.
+     */
+    public double payoffVariance() {
+        return (payoffSquareSum - payoffSum * payoffSum / agentCount) / (agentCount - 1);
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(agents);
+            out.writeInt(agentsPerPlayer);
+            out.writeInt(reps);
+            out.writeInt(units);
+            out.writeInt(vMin);
+            out.writeInt(vMax);
+            out.writeInt(strategies);
+            for (int s = 0; s < strategies; s++) {
+                out.writeUTF(StrategyDictionary.name(s));
+            }
+            out.writeInt(ProfileKey.COUNT);
+
+            // Sample names, sorted so the file only depends on the contents
+            List<String> names = new ArrayList<String>(sampleNames);
+            Collections.sort(names);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+
+            out.writeLong(agentCount);
+            writeDoubles(out, normalizedValueSums);
+            writeDoubles(out, valueSums);
+            writeDoubles(out, valueProducts);
+            writeDoubles(out, payoffNormalizedValueProducts);
+            out.writeDouble(payoffSum);
+            out.writeDouble(payoffSquareSum);
+
+            int[] profiles = profiles();
+            out.writeInt(profiles.length);
+            for (int p : profiles) {
+                out.writeInt(p);
+                out.writeLong(sampleCounts[p]);
+                for (int s = 0; s < strategies; s++) {
+                    out.writeLong(agentCounts[p][s]);
+                }
+                writeDoubles(out, agentPayoffSums[p]);
+                writeDoubles(out, agentNormalizedValueSums[p]);
+                writeDoubles(out, payoffMeanSums[p]);
+                writeDoubles(out, scoreMeanSums[p]);
+                writeDoubles(out, scoreMeanSquareSums[p]);
+                writeDoubles(out, normalizedMeanSums[p]);
+                writeDoubles(out, normalizedMeanProducts[p]);
+            }
+            out.flush();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    public static PipelineState read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a pipeline state file");
+            }
+            int version = in.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported pipeline state version " + version);
+            }
+            PipelineState state = new PipelineState(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            // The sums are laid out by strategy, so the strategies have to match
+            //  before they can be read
+            if (in.readInt() != state.strategies) {
+                throw new IOException(file + " was written for a different set of strategies");
+            }
+            for (int s = 0; s < state.strategies; s++) {
+                String name = in.readUTF();
+                if (!name.equals(StrategyDictionary.name(s))) {
+                    throw new IOException(file + " has strategy " + name + " where the market has " + StrategyDictionary.name(s));
+                }
+            }
+            if (in.readInt() != ProfileKey.COUNT) {
+                throw new IOException(file + " was written for a different set of profiles");
+            }
+
+            int names = in.readInt();
+            for (int i = 0; i < names; i++) {
+                state.sampleNames.add(in.readUTF());
+            }
+
+            state.agentCount = in.readLong();
+            readDoubles(in, state.normalizedValueSums);
+            readDoubles(in, state.valueSums);
+            readDoubles(in, state.valueProducts);
+            readDoubles(in, state.payoffNormalizedValueProducts);
+            state.payoffSum = in.readDouble();
+            state.payoffSquareSum = in.readDouble();
+
+            int profiles = in.readInt();
+            for (int i = 0; i < profiles; i++) {
+                int p = in.readInt();
+                state.allocate(p);
+                state.sampleCounts[p] = in.readLong();
+                for (int s = 0; s < state.strategies; s++) {
+                    state.agentCounts[p][s] = in.readLong();
+                }
+                readDoubles(in, state.agentPayoffSums[p]);
+                readDoubles(in, state.agentNormalizedValueSums[p]);
+                readDoubles(in, state.payoffMeanSums[p]);
+                readDoubles(in, state.scoreMeanSums[p]);
+                readDoubles(in, state.scoreMeanSquareSums[p]);
+                readDoubles(in, state.normalizedMeanSums[p]);
+                readDoubles(in, state.normalizedMeanProducts[p]);
+            }
+            return state;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public boolean matches(int agents, int agentsPerPlayer, int reps, int units, int vMin, int vMax) {
+        return this.agents == agents && this.agentsPerPlayer == agentsPerPlayer
+                && this.reps == reps && this.units == units && this.vMin == vMin && this.vMax == vMax;
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            out.writeDouble(values[i]);
+        }
+    }
+
+    private static void readDoubles(DataInputStream in, double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+    }
+}
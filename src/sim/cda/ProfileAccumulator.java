@@ -0,0 +1,263 @@
+package sim.cda;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-profile sample counts and per-strategy counts, sums, running means and
+ * sums of squared deviations from the mean in primitive arrays. Profiles are
+ * ProfileKey indices and strategies are StrategyDictionary ordinals. Only the
+ * profiles an accumulator is given get a slot in the arrays, so a scan's many
+ * small accumulators stay small in a market of many profiles, and adding a
+ * value is plain array arithmetic once the slot is found. The means and
+ * squared deviations are updated with Welford's method, so the variances come
+ * out of the same pass as the sums without cancellation. Accumulators filled
+ * from different parts of the samples can be merged (Chan et al.); merging
+ * them in a fixed order gives the same results no matter how many threads did
+ * the filling.
+ *
+ * An accumulator can also keep every value added, in order, for
+ * resampling (see Bootstrap). Each sample adds one value per strategy of its
+ * profile, so the i-th value of each strategy comes from the same sample.
+ *
+ * @author Augie
+ */
+public class ProfileAccumulator {
+
+    // Slots to start with, doubled as profiles come in
+    public static final int INITIAL_SLOTS = 16;
+    private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+    // Per slot, in the order the profiles came in
+    private int[] slotProfiles = new int[INITIAL_SLOTS];
+    private long[] sampleCounts = new long[INITIAL_SLOTS];
+    private long[][] counts = new long[INITIAL_SLOTS][];
+    private double[][] sums = new double[INITIAL_SLOTS][];
+    private double[][] means = new double[INITIAL_SLOTS][];
+    private double[][] squaredDeviations = new double[INITIAL_SLOTS][];
+    // [slot][strategy][value], grown as needed, when values are kept
+    private double[][][] values;
+    private int slotCount = 0;
+    // A sample adds all of its values to one profile
+    private int lastProfile = -1;
+    private int lastSlot = -1;
+
+    public ProfileAccumulator() {
+        this(false);
+    }
+
+    public ProfileAccumulator(boolean keepValues) {
+        values = keepValues ? new double[INITIAL_SLOTS][][] : null;
+    }
+
+    /**
+     * The profile's slot, or -1 if it has none. Only reads, so a filled
+     * accumulator can be read from several threads.
+     */
+    private int slot(int profile) {
+        if (profile == lastProfile) {
+            return lastSlot;
+        }
+        Integer slot = slots.get(profile);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * The profile's slot, given one if it has none.
+     */
+    private int allocate(int profile) {
+        int slot = slot(profile);
+        if (slot >= 0) {
+            lastProfile = profile;
+            lastSlot = slot;
+            return slot;
+        }
+        if (slotCount == slotProfiles.length) {
+            int length = slotCount * 2;
+            slotProfiles = Arrays.copyOf(slotProfiles, length);
+            sampleCounts = Arrays.copyOf(sampleCounts, length);
+            counts = Arrays.copyOf(counts, length);
+            sums = Arrays.copyOf(sums, length);
+            means = Arrays.copyOf(means, length);
+            squaredDeviations = Arrays.copyOf(squaredDeviations, length);
+            if (values != null) {
+                values = Arrays.copyOf(values, length);
+            }
+        }
+        slot = slotCount++;
+        slotProfiles[slot] = profile;
+        counts[slot] = new long[StrategyDictionary.size()];
+        sums[slot] = new double[StrategyDictionary.size()];
+        means[slot] = new double[StrategyDictionary.size()];
+        squaredDeviations[slot] = new double[StrategyDictionary.size()];
+        if (values != null) {
+            values[slot] = new double[StrategyDictionary.size()][0];
+        }
+        slots.put(profile, slot);
+        lastProfile = profile;
+        lastSlot = slot;
+        return slot;
+    }
+
+    private void keep(int slot, int strategy, int index, double value) {
+        double[] kept = values[slot][strategy];
+        if (index == kept.length) {
+            kept = Arrays.copyOf(kept, Math.max(16, index * 2));
+            values[slot][strategy] = kept;
+        }
+        kept[index] = value;
+    }
+
+    /**
+     * Counts one more sample of the profile.
+     */
+    public void addSample(int profile) {
+        int slot = allocate(profile);
+        sampleCounts[slot]++;
+    }
+
+    /**
+     * Adds a value for one strategy of the profile.
+     */
+    public void add(int profile, int strategy, double value) {
+        int slot = allocate(profile);
+        if (values != null) {
+            keep(slot, strategy, (int) counts[slot][strategy], value);
+        }
+        counts[slot][strategy]++;
+        sums[slot][strategy] += value;
+        double delta = value - means[slot][strategy];
+        means[slot][strategy] += delta / counts[slot][strategy];
+        squaredDeviations[slot][strategy] += delta * (value - means[slot][strategy]);
+    }
+
+    /**
+     * Adds the other accumulator's samples after this one's, going through
+     * only the profiles the other one has.
+     */
+    public void merge(ProfileAccumulator other) {
+        for (int o = 0; o < other.slotCount; o++) {
+            int p = allocate(other.slotProfiles[o]);
+            sampleCounts[p] += other.sampleCounts[o];
+            for (int s = 0; s < sums[p].length; s++) {
+                long otherCount = other.counts[o][s];
+                if (otherCount == 0) {
+                    continue;
+                }
+                if (values != null) {
+                    for (int i = 0; i < otherCount; i++) {
+                        keep(p, s, (int) counts[p][s] + i, other.values[o][s][i]);
+                    }
+                }
+                if (counts[p][s] == 0) {
+                    means[p][s] = other.means[o][s];
+                    squaredDeviations[p][s] = other.squaredDeviations[o][s];
+                } else {
+                    double count = counts[p][s] + otherCount;
+                    double delta = other.means[o][s] - means[p][s];
+                    means[p][s] += delta * otherCount / count;
+                    squaredDeviations[p][s] += other.squaredDeviations[o][s] + delta * delta * counts[p][s] * otherCount / count;
+                }
+                counts[p][s] += otherCount;
+                sums[p][s] += other.sums[o][s];
+            }
+        }
+    }
+
+    /**
+     * The profiles that have samples, in index order.
+     */
+    public int[] profiles() {
+        int[] profiles = new int[profileCount()];
+        int count = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (sampleCounts[slot] > 0) {
+                profiles[count++] = slotProfiles[slot];
+            }
+        }
+        Arrays.sort(profiles);
+        return profiles;
+    }
+
+    public int profileCount() {
+        int count = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (sampleCounts[slot] > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long sampleCount(int profile) {
+        int slot = slot(profile);
+        return slot < 0 ? 0 : sampleCounts[slot];
+    }
+
+    /**
+     * Sample counts indexed by profile.
+     */
+    public long[] sampleCounts() {
+        long[] byProfile = new long[ProfileKey.COUNT];
+        for (int slot = 0; slot < slotCount; slot++) {
+            byProfile[slotProfiles[slot]] = sampleCounts[slot];
+        }
+        return byProfile;
+    }
+
+    /**
+     * Counts of the values added for each strategy, or null for a profile
+     * without any.
+     */
+    public long[] counts(int profile) {
+        int slot = slot(profile);
+        return slot < 0 ? null : counts[slot];
+    }
+
+    /**
+     * The values added for the strategy, in order, if values are kept.
+     */
+    public double[] values(int profile, int strategy) {
+        int slot = slot(profile);
+        return Arrays.copyOf(values[slot][strategy], (int) counts[slot][strategy]);
+    }
+
+    public double[] sums(int profile) {
+        int slot = slot(profile);
+        return slot < 0 ? null : sums[slot];
+    }
+
+    /**
+     * Sums of squared deviations from each strategy's mean.
+     */
+    public double[] squaredDeviations(int profile) {
+        int slot = slot(profile);
+        return slot < 0 ? null : squaredDeviations[slot];
+    }
+
+    /**
+     * Sums divided by the number of samples of the profile.
+     */
+    public double[] averages(int profile) {
+        int slot = slot(profile);
+        double[] avgs = new double[sums[slot].length];
+        for (int s = 0; s < avgs.length; s++) {
+            avgs[s] = sums[slot][s] / (double) sampleCounts[slot];
+        }
+        return avgs;
+    }
+
+    /**
+     * Population std devs of the values added for each strategy.
+     */
+    public double[] stdDevs(int profile) {
+        int slot = slot(profile);
+        double[] stdDevs = new double[sums[slot].length];
+        for (int s = 0; s < stdDevs.length; s++) {
+            if (counts[slot][s] > 0) {
+                stdDevs[s] = Math.sqrt(squaredDeviations[slot][s] / (double) counts[slot][s]);
+            }
+        }
+        return stdDevs;
+    }
+}
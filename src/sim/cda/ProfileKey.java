@@ -0,0 +1,189 @@
+package sim.cda;
+
+/**
+ * Profiles packed into a long: BITS bits per strategy holding how many of
+ * the PLAYERS players use it, indexed by strategy ordinal. Every profile also
+ * has a dense index in [0, COUNT) (its rank among all profiles, ordered by the
+ * count of the first strategy, then the second, and so on), so per-profile
+ * data can be kept in plain arrays.
+ *
+ * @author Augie
+ */
+public class ProfileKey {
+
+    // Players in a profile; each one stands for AGENTS_PER_PLAYER of the
+    //  agents in a sample
+    public static final int PLAYERS = MarketConfig.get().players();
+    public static final int AGENTS_PER_PLAYER = MarketConfig.get().agentsPerPlayer();
+    // Enough bits for a count of 0 to PLAYERS
+    public static final int BITS = 32 - Integer.numberOfLeadingZeros(PLAYERS);
+    private static final int MASK = (1 << BITS) - 1;
+    // compositions[n][k] is the number of ways to split n players among k strategies
+    private static final int[][] compositions;
+    public static final int COUNT;
+    private static final long[] keys;
+    private static final String[] ids;
+
+    static {
+        int strategies = StrategyDictionary.size();
+        if (BITS * strategies > Long.SIZE) {
+            throw new IllegalStateException(PLAYERS + " players of " + strategies + " strategies don't fit in a profile key");
+        }
+        compositions = new int[PLAYERS + 1][strategies + 1];
+        compositions[0][0] = 1;
+        for (int k = 1; k <= strategies; k++) {
+            for (int n = 0; n <= PLAYERS; n++) {
+                for (int v = 0; v <= n; v++) {
+                    compositions[n][k] += compositions[n - v][k - 1];
+                }
+            }
+        }
+        COUNT = compositions[PLAYERS][strategies];
+        keys = new long[COUNT];
+        ids = new String[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            keys[i] = unrank(i);
+            ids[i] = toString(keys[i]);
+        }
+    }
+
+    /**
+     * Packs player counts indexed by strategy ordinal.
+     */
+    public static long encode(int[] counts) {
+        long key = 0;
+        for (int s = 0; s < counts.length; s++) {
+            key |= (long) counts[s] << (BITS * s);
+        }
+        return key;
+    }
+
+    /**
+     * The key of a sample's profile. Agents are counted per strategy and
+     * every AGENTS_PER_PLAYER agents make one player.
+     */
+    public static long of(Sample sample) {
+        int[] agentCounts = new int[StrategyDictionary.size()];
+        for (int i = 0; i < sample.agentCount(); i++) {
+            int strategy = sample.agentStrategyOrdinal(i);
+            if (strategy < 0) {
+                throw new IllegalArgumentException("Unknown strategy: " + sample.agentStrategy(i));
+            }
+            agentCounts[strategy]++;
+        }
+        long key = 0;
+        for (int s = 0; s < agentCounts.length; s++) {
+            key |= (long) (agentCounts[s] / AGENTS_PER_PLAYER) << (BITS * s);
+        }
+        return key;
+    }
+
+    /**
+     * How many players use the strategy.
+     */
+    public static int count(long key, int strategy) {
+        return (int) (key >>> (BITS * strategy)) & MASK;
+    }
+
+    /**
+     * How many strategies are used by at least one player.
+     */
+    public static int strategyCount(long key) {
+        int count = 0;
+        for (int s = 0; s < StrategyDictionary.size(); s++) {
+            if (count(key, s) > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The dense index of a profile.
+     */
+    public static int index(long key) {
+        int strategies = StrategyDictionary.size();
+        int index = 0;
+        int remaining = PLAYERS;
+        for (int s = 0; s < strategies - 1; s++) {
+            int c = count(key, s);
+            if (c > remaining) {
+                break;
+            }
+            for (int v = 0; v < c; v++) {
+                index += compositions[remaining - v][strategies - s - 1];
+            }
+            remaining -= c;
+        }
+        if (count(key, strategies - 1) != remaining || keys[index] != key) {
+            throw new IllegalArgumentException("Not a profile of " + PLAYERS + " players: " + toString(key));
+        }
+        return index;
+    }
+
+    /**
+     * The key of the profile with the given dense index.
+     */
+    public static long key(int index) {
+        return keys[index];
+    }
+
+    /**
+     * The profile ID of the profile with the given dense index.
+     */
+    public static String id(int index) {
+        return ids[index];
+    }
+
+    private static long unrank(int index) {
+        int strategies = StrategyDictionary.size();
+        long key = 0;
+        int remaining = PLAYERS;
+        for (int s = 0; s < strategies - 1; s++) {
+            int c = 0;
+            while (index >= compositions[remaining - c][strategies - s - 1]) {
+                index -= compositions[remaining - c][strategies - s - 1];
+                c++;
+            }
+            key |= (long) c << (BITS * s);
+            remaining -= c;
+        }
+        return key | ((long) remaining << (BITS * (strategies - 1)));
+    }
+
+    /**
+     * The profile ID, e.g. "1 GD 1 KAPLAN 2 ZIP", as built by the stages
+     * from sorted strategy names.
+     */
+    public static String toString(long key) {
+        String[] profileBuilder = new String[strategyCount(key) * 2];
+        int count = 0;
+        for (int s = 0; s < StrategyDictionary.size(); s++) {
+            if (count(key, s) > 0) {
+                profileBuilder[count++] = String.valueOf(count(key, s));
+                profileBuilder[count++] = StrategyDictionary.name(s);
+            }
+        }
+        return Utils.join(profileBuilder, " ");
+    }
+
+    /**
+     * The key of a profile ID.
+     */
+    public static long parse(String profileID) {
+        String[] split = profileID.trim().split(" ");
+        long key = 0;
+        for (int i = 0; i + 1 < split.length; i += 2) {
+            int strategy = StrategyDictionary.ordinal(split[i + 1]);
+            if (strategy < 0) {
+                throw new IllegalArgumentException("Unknown strategy: " + split[i + 1]);
+            }
+            int count = Integer.parseInt(split[i]);
+            if (count < 0 || count > PLAYERS) {
+                throw new IllegalArgumentException("Not a profile of " + PLAYERS + " players: " + profileID);
+            }
+            key |= (long) count << (BITS * strategy);
+        }
+        return key;
+    }
+}
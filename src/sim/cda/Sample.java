@@ -0,0 +1,45 @@
+package sim.cda;
+
+/**
+ * Read-only view of one simulation sample (one alloc.xml): the agents with
+ * their strategies, scores and unit values, and the transactions of every
+ * repetition. Implementations may be reused between samples, so a Sample is
+ * only valid until the next one is read.
+ *
+ * @author Augie
+ */
+public interface Sample {
+
+    public int agentCount();
+
+    public int agentID(int agent);
+
+    public String agentStrategy(int agent);
+
+    /**
+     * The StrategyDictionary ordinal of the agent's strategy, or -1 if it is
+     * not one of the game's strategies.
+     */
+    public int agentStrategyOrdinal(int agent);
+
+    public double agentScore(int agent);
+
+    public int valueCount(int agent);
+
+    public int agentValue(int agent, int unit);
+
+    public int repetitionCount();
+
+    /**
+     * The repetition ID as written in the sample (1-based).
+     */
+    public int repetitionID(int repetition);
+
+    public int transactionCount(int repetition);
+
+    public int transactionBuyerID(int repetition, int transaction);
+
+    public int transactionSellerID(int repetition, int transaction);
+
+    public int transactionPrice(int repetition, int transaction);
+}
@@ -0,0 +1,340 @@
+package sim.cda;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The sim#_sam#.xml samples inside a .zip or .tar.gz archive, read without
+ * unpacking it. A decompression thread inflates the entries ahead of the
+ * parser and hands them over through a bounded queue. Zip entries are read
+ * in file name order, like a samples directory; a tar.gz can only be read
+ * front to back, so its samples are in archive order. Other entries are
+ * skipped.
+ *
+ * Iterating reuses a single SampleData, so each Sample is only valid until
+ * the next one. For ParallelSampleScan the spliterator splits off batches of
+ * ParallelSampleScan.THRESHOLD inflated entries that are parsed on the thread
+ * that scans them.
+ *
+ * @author Augie
+ */
+public class SampleArchive implements SampleSource {
+
+    // Inflated entries waiting for the parser
+    public static final int QUEUE_SIZE = 2 * ParallelSampleScan.THRESHOLD;
+    private static final Entry END = new Entry(null, null);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private final File archive;
+
+    private static class Entry {
+
+        final String name;
+        final byte[] bytes;
+
+        Entry(String name, byte[] bytes) {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    public SampleArchive(File archive) {
+        this.archive = archive;
+    }
+
+    public static boolean isArchive(File in) {
+        String name = in.getName().toLowerCase();
+        return in.isFile() && (isZip(in) || name.endsWith(".tar.gz") || name.endsWith(".tgz"));
+    }
+
+    private static boolean isZip(File in) {
+        return in.getName().toLowerCase().endsWith(".zip");
+    }
+
+    private static boolean isSample(String entryName) {
+        String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return name.toLowerCase().endsWith(".xml") && !name.startsWith(".");
+    }
+
+    public Iterator<Sample> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    public Spliterator<Sample> spliterator() {
+        return new EntrySpliterator(start());
+    }
+
+    /**
+     * Starts a thread inflating the archive's samples into a queue, ended by
+     * END. A failure is handed over in the place of the next entry.
+     */
+    private BlockingQueue<Object> start() {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    if (isZip(archive)) {
+                        readZip(queue);
+                    } else {
+                        readTarGz(queue);
+                    }
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // Abandoned
+                } catch (Exception e) {
+                    try {
+                        queue.put(e);
+                    } catch (InterruptedException ie) {
+                    }
+                }
+            }
+        }, "Decompress " + archive.getName());
+        // Don't keep the JVM alive if the samples are never read to the end
+        thread.setDaemon(true);
+        thread.start();
+        return queue;
+    }
+
+    private void readZip(BlockingQueue<Object> queue) throws Exception {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.isDirectory() && isSample(entry.getName())) {
+                    entries.add(entry);
+                }
+            }
+            // Sorted by file name, as in a samples directory
+            Collections.sort(entries, new Comparator<ZipEntry>() {
+
+                public int compare(ZipEntry a, ZipEntry b) {
+                    String aName = a.getName().substring(a.getName().lastIndexOf('/') + 1);
+                    String bName = b.getName().substring(b.getName().lastIndexOf('/') + 1);
+                    return aName.compareTo(bName);
+                }
+            });
+            for (ZipEntry entry : entries) {
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    queue.put(new Entry(entry.getName(), IOUtils.toByteArray(in)));
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Reads the ustar headers directly, with GNU long names and pax paths.
+     */
+    private void readTarGz(BlockingQueue<Object> queue) throws Exception {
+        InputStream in = new GZIPInputStream(FileUtils.openInputStream(archive), 1 << 16);
+        try {
+            byte[] header = new byte[512];
+            String longName = null;
+            while (true) {
+                readFully(in, header, 512);
+                if (header[0] == 0) {
+                    // End of archive
+                    break;
+                }
+                String name = string(header, 0, 100);
+                String prefix = string(header, 345, 155);
+                if (prefix.length() > 0 && string(header, 257, 6).startsWith("ustar")) {
+                    name = prefix + "/" + name;
+                }
+                long size = Long.parseLong(string(header, 124, 12).trim(), 8);
+                char type = (char) header[156];
+                byte[] data = null;
+                if (type == 'L' || type == 'x' || ((type == '0' || type == 0) && isSample(longName != null ? longName : name))) {
+                    data = new byte[(int) size];
+                    readFully(in, data, data.length);
+                } else {
+                    skipFully(in, size);
+                }
+                // Entries are padded to whole blocks
+                skipFully(in, (512 - size % 512) % 512);
+                if (type == 'L') {
+                    longName = string(data, 0, data.length);
+                } else if (type == 'x') {
+                    longName = paxPath(data);
+                } else {
+                    if (data != null) {
+                        queue.put(new Entry(longName != null ? longName : name, data));
+                    }
+                    longName = null;
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static String string(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, ASCII);
+    }
+
+    private static String paxPath(byte[] data) {
+        // Records are "<length> <key>=<value>\n"
+        String records = new String(data, Charset.forName("UTF-8"));
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if (record.startsWith("path=", space + 1)) {
+                return record.substring(space + 6);
+            }
+        }
+        return null;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Archive ends in the middle of an entry");
+            }
+            read += count;
+        }
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long count = in.skip(length);
+            if (count <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Archive ends in the middle of an entry");
+                }
+                count = 1;
+            }
+            length -= count;
+        }
+    }
+
+    /**
+     * Takes the next inflated entry, or null at the end of the archive.
+     */
+    private Entry take(BlockingQueue<Object> queue) {
+        Object next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted reading " + archive, e);
+        }
+        if (next instanceof Exception) {
+            // Leave the end for whoever asks next
+            queue.offer(END);
+            throw new RuntimeException("Could not read " + archive, (Exception) next);
+        }
+        if (next == END) {
+            queue.offer(END);
+            return null;
+        }
+        return (Entry) next;
+    }
+
+    private Sample parse(Entry entry, SampleReader reader, SampleData sample) {
+        try {
+            reader.read(new ByteArrayInputStream(entry.bytes), sample);
+        } catch (Exception e) {
+            throw new RuntimeException("Could not read " + entry.name + " in " + archive, e);
+        }
+        return sample;
+    }
+
+    /**
+     * The samples still in the queue. Its size is not known up front.
+     */
+    private class EntrySpliterator implements Spliterator<Sample> {
+
+        private final BlockingQueue<Object> queue;
+        private final SampleReader reader = new SampleReader();
+        private final SampleData sample = new SampleData();
+
+        EntrySpliterator(BlockingQueue<Object> queue) {
+            this.queue = queue;
+        }
+
+        public boolean tryAdvance(Consumer<? super Sample> action) {
+            Entry entry = take(queue);
+            if (entry == null) {
+                return false;
+            }
+            action.accept(parse(entry, reader, sample));
+            return true;
+        }
+
+        /**
+         * The next batch of entries, parsed by whichever thread takes it.
+         */
+        public Spliterator<Sample> trySplit() {
+            List<Entry> batch = new ArrayList<Entry>(ParallelSampleScan.THRESHOLD);
+            while (batch.size() < ParallelSampleScan.THRESHOLD) {
+                Entry entry = take(queue);
+                if (entry == null) {
+                    break;
+                }
+                batch.add(entry);
+            }
+            if (batch.isEmpty()) {
+                return null;
+            }
+            return new BatchSpliterator(batch.toArray(new Entry[batch.size()]), 0, batch.size());
+        }
+
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+
+    private class BatchSpliterator extends SampleRangeSpliterator {
+
+        private final Entry[] entries;
+        private final SampleReader reader = new SampleReader();
+        private final SampleData sample = new SampleData();
+
+        BatchSpliterator(Entry[] entries, int from, int to) {
+            super(from, to);
+            this.entries = entries;
+        }
+
+        protected Sample read(int index) {
+            Sample read = parse(entries[index], reader, sample);
+            // Done with the bytes
+            entries[index] = null;
+            return read;
+        }
+
+        protected SampleRangeSpliterator range(int from, int to) {
+            return new BatchSpliterator(entries, from, to);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package sim.cda;
+
+import java.util.Arrays;
+
+/**
+ * Array-backed Sample that is filled in by the sample readers. The buffers
+ * only ever grow, so reading sample after sample into the same instance does
+ * not allocate once it has seen the largest sample.
+ *
+ * @author Augie
+ */
+public class SampleData implements Sample {
+
+    // Starting sizes, from the market
+    private final int units;
+    private final int transactions;
+    private int agentCount = 0;
+    private int[] agentIDs;
+    private String[] agentStrategies;
+    private int[] agentStrategyOrdinals;
+    private double[] agentScores;
+    private int[] valueCounts;
+    private int[][] values;
+    private int repetitionCount = 0;
+    private int[] repetitionIDs;
+    private int[] transactionCounts;
+    private int[][] buyerIDs;
+    private int[][] sellerIDs;
+    private int[][] prices;
+
+    public SampleData() {
+        MarketConfig market = MarketConfig.get();
+        int agents = market.agents();
+        int reps = market.reps();
+        units = market.units();
+        transactions = agents * units / 2;
+        agentIDs = new int[agents];
+        agentStrategies = new String[agents];
+        agentStrategyOrdinals = new int[agents];
+        agentScores = new double[agents];
+        valueCounts = new int[agents];
+        values = new int[agents][units];
+        repetitionIDs = new int[reps];
+        transactionCounts = new int[reps];
+        buyerIDs = new int[reps][transactions];
+        sellerIDs = new int[reps][transactions];
+        prices = new int[reps][transactions];
+    }
+
+    public void clear() {
+        agentCount = 0;
+        repetitionCount = 0;
+    }
+
+    void startAgent() {
+        if (agentCount == agentIDs.length) {
+            int length = agentCount * 2;
+            agentIDs = Arrays.copyOf(agentIDs, length);
+            agentStrategies = Arrays.copyOf(agentStrategies, length);
+            agentStrategyOrdinals = Arrays.copyOf(agentStrategyOrdinals, length);
+            agentScores = Arrays.copyOf(agentScores, length);
+            valueCounts = Arrays.copyOf(valueCounts, length);
+            values = Arrays.copyOf(values, length);
+            for (int i = agentCount; i < length; i++) {
+                values[i] = new int[units];
+            }
+        }
+        agentIDs[agentCount] = 0;
+        agentStrategies[agentCount] = null;
+        agentStrategyOrdinals[agentCount] = -1;
+        agentScores[agentCount] = 0;
+        valueCounts[agentCount] = 0;
+        agentCount++;
+    }
+
+    void setAgentID(int id) {
+        agentIDs[agentCount - 1] = id;
+    }
+
+    void setAgentStrategy(String strategy) {
+        int ordinal = StrategyDictionary.ordinal(strategy);
+        // Share the dictionary's copy of the name
+        agentStrategies[agentCount - 1] = ordinal < 0 ? strategy : StrategyDictionary.name(ordinal);
+        agentStrategyOrdinals[agentCount - 1] = ordinal;
+    }
+
+    void setAgentScore(double score) {
+        agentScores[agentCount - 1] = score;
+    }
+
+    void addAgentValue(int value) {
+        int agent = agentCount - 1;
+        if (valueCounts[agent] == values[agent].length) {
+            values[agent] = Arrays.copyOf(values[agent], valueCounts[agent] * 2);
+        }
+        values[agent][valueCounts[agent]++] = value;
+    }
+
+    void startRepetition() {
+        if (repetitionCount == repetitionIDs.length) {
+            int length = repetitionCount * 2;
+            repetitionIDs = Arrays.copyOf(repetitionIDs, length);
+            transactionCounts = Arrays.copyOf(transactionCounts, length);
+            buyerIDs = Arrays.copyOf(buyerIDs, length);
+            sellerIDs = Arrays.copyOf(sellerIDs, length);
+            prices = Arrays.copyOf(prices, length);
+            for (int i = repetitionCount; i < length; i++) {
+                buyerIDs[i] = new int[transactions];
+                sellerIDs[i] = new int[transactions];
+                prices[i] = new int[transactions];
+            }
+        }
+        repetitionIDs[repetitionCount] = 0;
+        transactionCounts[repetitionCount] = 0;
+        repetitionCount++;
+    }
+
+    void setRepetitionID(int id) {
+        repetitionIDs[repetitionCount - 1] = id;
+    }
+
+    void startTransaction() {
+        int repetition = repetitionCount - 1;
+        int transaction = transactionCounts[repetition];
+        if (transaction == prices[repetition].length) {
+            int length = transaction * 2;
+            buyerIDs[repetition] = Arrays.copyOf(buyerIDs[repetition], length);
+            sellerIDs[repetition] = Arrays.copyOf(sellerIDs[repetition], length);
+            prices[repetition] = Arrays.copyOf(prices[repetition], length);
+        }
+        buyerIDs[repetition][transaction] = 0;
+        sellerIDs[repetition][transaction] = 0;
+        prices[repetition][transaction] = 0;
+        transactionCounts[repetition]++;
+    }
+
+    void setTransactionBuyerID(int id) {
+        int repetition = repetitionCount - 1;
+        buyerIDs[repetition][transactionCounts[repetition] - 1] = id;
+    }
+
+    void setTransactionSellerID(int id) {
+        int repetition = repetitionCount - 1;
+        sellerIDs[repetition][transactionCounts[repetition] - 1] = id;
+    }
+
+    void setTransactionPrice(int price) {
+        int repetition = repetitionCount - 1;
+        prices[repetition][transactionCounts[repetition] - 1] = price;
+    }
+
+    public int agentCount() {
+        return agentCount;
+    }
+
+    public int agentID(int agent) {
+        return agentIDs[agent];
+    }
+
+    public String agentStrategy(int agent) {
+        return agentStrategies[agent];
+    }
+
+    public int agentStrategyOrdinal(int agent) {
+        return agentStrategyOrdinals[agent];
+    }
+
+    public double agentScore(int agent) {
+        return agentScores[agent];
+    }
+
+    public int valueCount(int agent) {
+        return valueCounts[agent];
+    }
+
+    public int agentValue(int agent, int unit) {
+        return values[agent][unit];
+    }
+
+    public int repetitionCount() {
+        return repetitionCount;
+    }
+
+    public int repetitionID(int repetition) {
+        return repetitionIDs[repetition];
+    }
+
+    public int transactionCount(int repetition) {
+        return transactionCounts[repetition];
+    }
+
+    public int transactionBuyerID(int repetition, int transaction) {
+        return buyerIDs[repetition][transaction];
+    }
+
+    public int transactionSellerID(int repetition, int transaction) {
+        return sellerIDs[repetition][transaction];
+    }
+
+    public int transactionPrice(int repetition, int transaction) {
+        return prices[repetition][transaction];
+    }
+}
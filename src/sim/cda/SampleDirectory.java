@@ -0,0 +1,118 @@
+package sim.cda;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+
+/**
+ * The samples in a directory of sim#_sam#.xml files. When a sample also has a
+ * sim#_sam#.bin cache written by ConvertSamplesToBinary, the cache is read
+ * instead of the XML, unless the XML has changed since. Samples are in file
+ * name order. Iterating reuses a single SampleData, so each Sample is only
+ * valid until the next one.
+ *
+ * @author Augie
+ */
+public class SampleDirectory implements SampleSource {
+
+    private final File[] files;
+
+    public SampleDirectory(File dir) {
+        List<File> sampleFiles = new ArrayList<File>();
+        String[] fileNames = dir.list();
+        Arrays.sort(fileNames);
+        for (String fileName : fileNames) {
+            String lowerCase = fileName.toLowerCase();
+            if (lowerCase.endsWith(".xml")) {
+                File xmlFile = new File(dir, fileName);
+                File binaryFile = new File(dir, fileName.substring(0, fileName.length() - 4) + BinarySampleFormat.EXTENSION);
+                sampleFiles.add(BinarySampleFormat.isCurrent(binaryFile, xmlFile) ? binaryFile : xmlFile);
+            } else if (lowerCase.endsWith(BinarySampleFormat.EXTENSION)
+                    && !new File(dir, fileName.substring(0, fileName.length() - 4) + ".xml").exists()) {
+                // Cache without its XML
+                sampleFiles.add(new File(dir, fileName));
+            }
+        }
+        files = sampleFiles.toArray(new File[sampleFiles.size()]);
+    }
+
+    public int size() {
+        return files.length;
+    }
+
+    public File[] files() {
+        return files;
+    }
+
+    /**
+     * Reads either a binary cache or an XML sample file.
+     */
+    public static void read(File sampleFile, SampleReader reader, SampleData sample) throws Exception {
+        if (sampleFile.getName().toLowerCase().endsWith(BinarySampleFormat.EXTENSION)) {
+            BinarySampleFormat.read(sampleFile, sample);
+        } else {
+            reader.read(sampleFile, sample);
+        }
+    }
+
+    public Iterator<Sample> iterator() {
+        return new Iterator<Sample>() {
+
+            private final SampleReader reader = new SampleReader();
+            private final SampleData sample = new SampleData();
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < files.length;
+            }
+
+            public Sample next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                File sampleFile = files[next++];
+                try {
+                    read(sampleFile, reader, sample);
+                } catch (Exception e) {
+                    throw new RuntimeException("Could not read " + sampleFile, e);
+                }
+                return sample;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Spliterator<Sample> spliterator() {
+        return new FileSpliterator(0, files.length);
+    }
+
+    private class FileSpliterator extends SampleRangeSpliterator {
+
+        private final SampleReader reader = new SampleReader();
+        private final SampleData sample = new SampleData();
+
+        FileSpliterator(int from, int to) {
+            super(from, to);
+        }
+
+        protected Sample read(int index) {
+            try {
+                SampleDirectory.read(files[index], reader, sample);
+            } catch (Exception e) {
+                throw new RuntimeException("Could not read " + files[index], e);
+            }
+            return sample;
+        }
+
+        protected SampleRangeSpliterator range(int from, int to) {
+            return new FileSpliterator(from, to);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package sim.cda;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of samples that can be read by index. Splitting
+ * always halves the remaining range, so how a corpus is cut up depends only
+ * on its size. Each spliterator reads into its own buffer and can be handed
+ * to another thread, but a Sample is only valid until the next one is read.
+ *
+ * @author Augie
+ */
+public abstract class SampleRangeSpliterator implements Spliterator<Sample> {
+
+    private int index;
+    private final int end;
+
+    protected SampleRangeSpliterator(int from, int to) {
+        this.index = from;
+        this.end = to;
+    }
+
+    /**
+     * Reads the sample at the given index into this spliterator's buffer.
+     */
+    protected abstract Sample read(int index);
+
+    /**
+     * A new spliterator, with its own buffer, over [from, to).
+     */
+    protected abstract SampleRangeSpliterator range(int from, int to);
+
+    public boolean tryAdvance(Consumer<? super Sample> action) {
+        if (index >= end) {
+            return false;
+        }
+        action.accept(read(index++));
+        return true;
+    }
+
+    public Spliterator<Sample> trySplit() {
+        int middle = (index + end) >>> 1;
+        if (middle <= index) {
+            return null;
+        }
+        Spliterator<Sample> prefix = range(index, middle);
+        index = middle;
+        return prefix;
+    }
+
+    public long estimateSize() {
+        return end - index;
+    }
+
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+    }
+}
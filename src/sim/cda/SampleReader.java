@@ -0,0 +1,145 @@
+package sim.cda;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads an alloc.xml sample in a single forward pass with StAX instead of
+ * building a XOM document. Only <scores>/<agent> and
+ * <transactions>/<repetition> are looked at; everything else is skipped.
+ *
+ * @author Augie
+ */
+public class SampleReader {
+
+    // Where we are in the document
+    private static final int OTHER = 0;
+    private static final int SCORES = 1;
+    private static final int AGENT = 2;
+    private static final int VALUES = 3;
+    private static final int TRANSACTIONS = 4;
+    private static final int REPETITION = 5;
+    private static final int TRANSACTION = 6;
+    private final XMLInputFactory factory;
+
+    public SampleReader() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    public void read(File sampleFile, SampleData sample) throws IOException, XMLStreamException {
+        InputStream in = null;
+        try {
+            in = FileUtils.openInputStream(sampleFile);
+            read(in, sample);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void read(InputStream in, SampleData sample) throws XMLStreamException {
+        sample.clear();
+        XMLStreamReader reader = factory.createXMLStreamReader(in);
+        try {
+            // Element depth, the root <results> element is depth 1
+            int depth = 0;
+            // What the open element at each depth is, leaf elements are
+            //  read whole and never pushed
+            int[] state = new int[6];
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = reader.getLocalName();
+                int parent = depth > 1 && depth < state.length ? state[depth - 1] : OTHER;
+                int current = OTHER;
+                switch (depth) {
+                    case 1:
+                        break;
+                    case 2:
+                        if (name.equals("scores")) {
+                            current = SCORES;
+                        } else if (name.equals("transactions")) {
+                            current = TRANSACTIONS;
+                        }
+                        break;
+                    default:
+                        if (parent == SCORES && name.equals("agent")) {
+                            sample.startAgent();
+                            current = AGENT;
+                        } else if (parent == AGENT) {
+                            if (name.equals("ID")) {
+                                sample.setAgentID(readInt(reader));
+                                depth--;
+                                continue;
+                            } else if (name.equals("strategy")) {
+                                sample.setAgentStrategy(reader.getElementText());
+                                depth--;
+                                continue;
+                            } else if (name.equals("score")) {
+                                sample.setAgentScore(Double.valueOf(reader.getElementText().trim()));
+                                depth--;
+                                continue;
+                            } else if (name.equals("values")) {
+                                current = VALUES;
+                            }
+                        } else if (parent == VALUES && name.equals("value")) {
+                            sample.addAgentValue(readInt(reader));
+                            depth--;
+                            continue;
+                        } else if (parent == TRANSACTIONS && name.equals("repetition")) {
+                            sample.startRepetition();
+                            current = REPETITION;
+                        } else if (parent == REPETITION) {
+                            if (name.equals("id")) {
+                                sample.setRepetitionID(readInt(reader));
+                                depth--;
+                                continue;
+                            } else if (name.equals("transaction")) {
+                                sample.startTransaction();
+                                current = TRANSACTION;
+                            }
+                        } else if (parent == TRANSACTION) {
+                            if (name.equals("buyerID")) {
+                                sample.setTransactionBuyerID(readInt(reader));
+                                depth--;
+                                continue;
+                            } else if (name.equals("sellerID")) {
+                                sample.setTransactionSellerID(readInt(reader));
+                                depth--;
+                                continue;
+                            } else if (name.equals("price")) {
+                                sample.setTransactionPrice(readInt(reader));
+                                depth--;
+                                continue;
+                            }
+                        }
+                        break;
+                }
+                if (depth < state.length) {
+                    state[depth] = current;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int readInt(XMLStreamReader reader) throws XMLStreamException {
+        return Integer.parseInt(reader.getElementText().trim());
+    }
+}
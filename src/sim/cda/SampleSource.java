@@ -0,0 +1,32 @@
+package sim.cda;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+
+/**
+ * Where the stages get their samples from. Implementations decide how
+ * samples are stored and parsed; the stages only iterate or split.
+ *
+ * A Sample handed out by an iterator or spliterator is only valid until the
+ * next one is read from it, since implementations reuse their buffers. Each
+ * spliterator split off has a buffer of its own, so the parts can be read on
+ * different threads, e.g. by ParallelSampleScan or a parallel stream from
+ * StreamSupport.stream(source.spliterator(), true), as long as no Sample is
+ * kept past the call it was handed to.
+ *
+ * @author Augie
+ */
+public interface SampleSource extends Iterable<Sample> {
+
+    /**
+     * The samples in a fixed order.
+     */
+    public Iterator<Sample> iterator();
+
+    /**
+     * The samples in the same order as the iterator. Sources that know
+     * their size split by halving; sources that don't are not SIZED and
+     * split off batches as the samples arrive.
+     */
+    public Spliterator<Sample> spliterator();
+}
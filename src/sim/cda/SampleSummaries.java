@@ -0,0 +1,175 @@
+package sim.cda;
+
+import java.util.Arrays;
+
+/**
+ * Compact in-memory summary of every sample: which profile it belongs to and,
+ * per agent, the strategy, the total payoff over all repetitions, the score
+ * and the raw unit values. That is everything the pipeline stages need, so
+ * the samples only have to be parsed once.
+ *
+ * @author Augie
+ */
+public class SampleSummaries {
+
+    private final int agents;
+    private final int reps;
+    private final int units;
+    // Samples per ProfileKey index
+    private final int[] profileSampleCounts = new int[ProfileKey.COUNT];
+    // Per sample
+    private int sampleCount = 0;
+    private int[] sampleProfiles = new int[1024];
+    private int[] sampleAgentOffsets = new int[1025];
+    // Per agent
+    private int agentCount = 0;
+    private byte[] agentStrategies;
+    private int[] agentPayoffSums;
+    private double[] agentScores;
+    private short[] agentValues;
+
+    /**
+     * Starts with room for 1024 samples of the given number of agents.
+     */
+    public SampleSummaries(int agents, int reps, int units) {
+        this.agents = agents;
+        this.reps = reps;
+        this.units = units;
+        this.agentStrategies = new byte[agents * 1024];
+        this.agentPayoffSums = new int[agents * 1024];
+        this.agentScores = new double[agents * 1024];
+        this.agentValues = new short[agents * 1024 * units];
+    }
+
+    public void add(Sample sample) {
+        // Transactions that count, per repetition and agent
+        TransactionTable transactions = TransactionTable.get(reps, agents, units);
+        transactions.fill(sample);
+
+        // What is the profile for this sample?
+        int profile = ProfileKey.index(ProfileKey.of(sample));
+        profileSampleCounts[profile]++;
+
+        // Make room for this sample
+        if (sampleCount == sampleProfiles.length) {
+            sampleProfiles = Arrays.copyOf(sampleProfiles, sampleCount * 2);
+            sampleAgentOffsets = Arrays.copyOf(sampleAgentOffsets, sampleCount * 2 + 1);
+        }
+        int needed = agentCount + sample.agentCount();
+        if (needed > agentStrategies.length) {
+            int length = Math.max(needed, agentStrategies.length * 2);
+            agentStrategies = Arrays.copyOf(agentStrategies, length);
+            agentPayoffSums = Arrays.copyOf(agentPayoffSums, length);
+            agentScores = Arrays.copyOf(agentScores, length);
+            agentValues = Arrays.copyOf(agentValues, length * units);
+        }
+        sampleProfiles[sampleCount] = profile;
+        sampleAgentOffsets[sampleCount] = agentCount;
+
+        for (int i = 0; i < sample.agentCount(); i++) {
+            int id = sample.agentID(i);
+            int slot = transactions.slot(id);
+            int valueOffset = agentCount * units;
+            for (int u = 0; u < units; u++) {
+                agentValues[valueOffset + u] = (short) sample.agentValue(i, u);
+            }
+
+            // Is this agent a buyer?
+            boolean isBuyer = sample.agentValue(i, 0) > sample.agentValue(i, units - 1);
+
+            // Total payoff over all of the repetitions
+            int payoffSum = 0;
+            for (int r = 0; r < reps; r++) {
+                for (int p = 0; p < transactions.count(r, slot); p++) {
+                    int price = transactions.price(r, slot, p);
+                    if (isBuyer) {
+                        payoffSum += sample.agentValue(i, p) - price;
+                    } else {
+                        payoffSum += price - sample.agentValue(i, p);
+                    }
+                }
+            }
+
+            agentStrategies[agentCount] = (byte) sample.agentStrategyOrdinal(i);
+            agentPayoffSums[agentCount] = payoffSum;
+            agentScores[agentCount] = sample.agentScore(i);
+            agentCount++;
+        }
+        sampleCount++;
+        sampleAgentOffsets[sampleCount] = agentCount;
+    }
+
+    public int profileCount() {
+        int count = 0;
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            if (profileSampleCounts[p] > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ProfileKey indices of the profiles that have samples, in index order.
+     */
+    public int[] profiles() {
+        int[] profiles = new int[profileCount()];
+        int count = 0;
+        for (int p = 0; p < ProfileKey.COUNT; p++) {
+            if (profileSampleCounts[p] > 0) {
+                profiles[count++] = p;
+            }
+        }
+        return profiles;
+    }
+
+    public int profileSampleCount(int profile) {
+        return profileSampleCounts[profile];
+    }
+
+    public int sampleCount() {
+        return sampleCount;
+    }
+
+    public int sampleProfile(int sample) {
+        return sampleProfiles[sample];
+    }
+
+    public int firstAgent(int sample) {
+        return sampleAgentOffsets[sample];
+    }
+
+    public int endAgent(int sample) {
+        return sampleAgentOffsets[sample + 1];
+    }
+
+    public int agentCount() {
+        return agentCount;
+    }
+
+    /**
+     * StrategyDictionary ordinal of the agent's strategy.
+     */
+    public int agentStrategy(int agent) {
+        return agentStrategies[agent];
+    }
+
+    /**
+     * Average payoff per repetition.
+     */
+    public double agentPayoff(int agent) {
+        return agentPayoffSums[agent] / (double) reps;
+    }
+
+    public double agentScore(int agent) {
+        return agentScores[agent];
+    }
+
+    public int agentValue(int agent, int unit) {
+        return agentValues[agent * units + unit];
+    }
+
+    public boolean isBuyer(int agent) {
+        return agentValues[agent * units] > agentValues[agent * units + units - 1];
+    }
+}
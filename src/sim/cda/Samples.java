@@ -0,0 +1,24 @@
+package sim.cda;
+
+import java.io.File;
+
+/**
+ *
+ * @author Augie
+ */
+public class Samples {
+
+    /**
+     * Opens a packed sample file, a .zip or .tar.gz archive of samples or a
+     * directory of samples.
+     */
+    public static SampleSource open(File in) throws Exception {
+        if (PackedSampleStore.isPacked(in)) {
+            return new PackedSampleStore(in);
+        }
+        if (SampleArchive.isArchive(in)) {
+            return new SampleArchive(in);
+        }
+        return new SampleDirectory(in);
+    }
+}
@@ -0,0 +1,44 @@
+package sim.cda;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The strategies of the game, as given by the MarketConfig, in the order they
+ * are listed in the game JSON header. A strategy's ordinal is its index in
+ * that list, which is also alphabetical order, so anything indexed by ordinal
+ * is already sorted by strategy name.
+ *
+ * @author Augie
+ */
+public class StrategyDictionary {
+
+    public static final String[] STRATEGIES = MarketConfig.get().strategies();
+    private static final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < STRATEGIES.length; i++) {
+            ordinals.put(STRATEGIES[i], i);
+        }
+    }
+
+    public static int size() {
+        return STRATEGIES.length;
+    }
+
+    /**
+     * The ordinal of a strategy name, or -1 if it is not one of the game's
+     * strategies.
+     */
+    public static int ordinal(String strategy) {
+        Integer ordinal = ordinals.get(strategy);
+        if (ordinal == null) {
+            return -1;
+        }
+        return ordinal;
+    }
+
+    public static String name(int ordinal) {
+        return STRATEGIES[ordinal];
+    }
+}
@@ -0,0 +1,45 @@
+package sim.cda;
+
+/**
+ * UnitKernels unrolled for 10 units. Get one from UnitKernels.create().
+ *
+ * @author Augie
+ */
+public class TenUnitKernels extends UnitKernels {
+
+    public static final int UNITS = 10;
+
+    public TenUnitKernels(int vMin, int vMax) {
+        super(UNITS, vMin, vMax);
+    }
+
+    public void normalize(int[] values, boolean buyer, double[] normalized) {
+        int sign = buyer ? 1 : -1;
+        int offset = buyer ? -vMin : vMax;
+        normalized[0] = sign * values[0] + offset;
+        normalized[1] = sign * values[1] + offset;
+        normalized[2] = sign * values[2] + offset;
+        normalized[3] = sign * values[3] + offset;
+        normalized[4] = sign * values[4] + offset;
+        normalized[5] = sign * values[5] + offset;
+        normalized[6] = sign * values[6] + offset;
+        normalized[7] = sign * values[7] + offset;
+        normalized[8] = sign * values[8] + offset;
+        normalized[9] = sign * values[9] + offset;
+    }
+
+    public double reduce(double payoff, double[] coeffs, double[] normalized, double[] avgs) {
+        // Left to right, as the generic loop subtracts
+        return payoff
+                - coeffs[0] * (normalized[0] - avgs[0])
+                - coeffs[1] * (normalized[1] - avgs[1])
+                - coeffs[2] * (normalized[2] - avgs[2])
+                - coeffs[3] * (normalized[3] - avgs[3])
+                - coeffs[4] * (normalized[4] - avgs[4])
+                - coeffs[5] * (normalized[5] - avgs[5])
+                - coeffs[6] * (normalized[6] - avgs[6])
+                - coeffs[7] * (normalized[7] - avgs[7])
+                - coeffs[8] * (normalized[8] - avgs[8])
+                - coeffs[9] * (normalized[9] - avgs[9]);
+    }
+}
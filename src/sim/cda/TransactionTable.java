@@ -0,0 +1,117 @@
+package sim.cda;
+
+/**
+ * The transaction prices that count towards each agent's payoff in a
+ * sample, in a fixed int[reps][agents][units] table with a fill counter per
+ * repetition and agent. A transaction is skipped once either side has traded
+ * all of its units in that repetition. Agents get a slot in the order they
+ * first trade, so agent IDs don't have to be dense.
+ *
+ * A table is refilled for every sample and allocates nothing after it is
+ * built. Each thread gets its own from get().
+ *
+ * @author Augie
+ */
+public class TransactionTable {
+
+    private static final ThreadLocal<TransactionTable> POOL = new ThreadLocal<TransactionTable>();
+    private final int reps;
+    private final int agents;
+    private final int units;
+    private final int[][][] prices;
+    private final int[][] counts;
+    // Agent ID of each slot
+    private final int[] ids;
+    private int slotCount = 0;
+
+    public TransactionTable(int reps, int agents, int units) {
+        this.reps = reps;
+        this.agents = agents;
+        this.units = units;
+        prices = new int[reps][agents][units];
+        counts = new int[reps][agents];
+        ids = new int[agents];
+    }
+
+    /**
+     * This thread's table of the given size.
+     */
+    public static TransactionTable get(int reps, int agents, int units) {
+        TransactionTable table = POOL.get();
+        if (table == null || table.reps != reps || table.agents != agents || table.units != units) {
+            table = new TransactionTable(reps, agents, units);
+            POOL.set(table);
+        }
+        return table;
+    }
+
+    /**
+     * Replaces the table's contents with the transactions of the sample.
+     */
+    public void fill(Sample sample) {
+        for (int r = 0; r < reps; r++) {
+            for (int s = 0; s < slotCount; s++) {
+                counts[r][s] = 0;
+            }
+        }
+        slotCount = 0;
+        for (int i = 0; i < sample.repetitionCount(); i++) {
+            int id = sample.repetitionID(i) - 1;
+            if (id < 0 || id >= reps) {
+                throw new IllegalArgumentException("Repetition " + sample.repetitionID(i) + " is not one of " + reps);
+            }
+            int[][] repPrices = prices[id];
+            int[] repCounts = counts[id];
+            for (int j = 0; j < sample.transactionCount(i); j++) {
+                int buyer = addSlot(sample.transactionBuyerID(i, j));
+                int seller = addSlot(sample.transactionSellerID(i, j));
+                if (repCounts[buyer] == units || repCounts[seller] == units) {
+                    continue;
+                }
+                int price = sample.transactionPrice(i, j);
+                repPrices[buyer][repCounts[buyer]++] = price;
+                repPrices[seller][repCounts[seller]++] = price;
+            }
+        }
+    }
+
+    private int addSlot(int agentID) {
+        int slot = slot(agentID);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (slotCount == agents) {
+            throw new IllegalArgumentException("More than " + agents + " agents trade in the sample");
+        }
+        ids[slotCount] = agentID;
+        return slotCount++;
+    }
+
+    /**
+     * The agent's slot, or -1 if it never traded.
+     */
+    public int slot(int agentID) {
+        for (int s = 0; s < slotCount; s++) {
+            if (ids[s] == agentID) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * How many units the agent in the slot traded in the repetition; 0 for
+     * slot -1.
+     */
+    public int count(int rep, int slot) {
+        return slot < 0 ? 0 : counts[rep][slot];
+    }
+
+    /**
+     * The price of the unit-th unit the agent in the slot traded in the
+     * repetition.
+     */
+    public int price(int rep, int slot, int unit) {
+        return prices[rep][slot][unit];
+    }
+}
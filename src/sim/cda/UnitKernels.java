@@ -0,0 +1,62 @@
+package sim.cda;
+
+/**
+ * The per-agent loops over unit values: normalizing the values and reducing
+ * a payoff by the control variates. create() picks the implementation for
+ * the market once: TenUnitKernels, fully unrolled, for the 10 units of the
+ * CDA games, and these generic loops for any other number of units. Both
+ * give the same results to the last bit.
+ *
+ * @author Augie
+ */
+public class UnitKernels {
+
+    protected final int units;
+    protected final int vMin;
+    protected final int vMax;
+
+    public UnitKernels(int units, int vMin, int vMax) {
+        this.units = units;
+        this.vMin = vMin;
+        this.vMax = vMax;
+    }
+
+    /**
+     * The kernels for a market with the given number of units and range of
+     * values.
+     */
+    public static UnitKernels create(int units, int vMin, int vMax) {
+        if (units == TenUnitKernels.UNITS) {
+            return new TenUnitKernels(vMin, vMax);
+        }
+        return new UnitKernels(units, vMin, vMax);
+    }
+
+    public int units() {
+        return units;
+    }
+
+    /**
+     * How far each value is from the worst possible one: value - vMin for a
+     * buyer and vMax - value for a seller. The buyer/seller choice is made
+     * once per agent, as a sign and an offset, not once per unit.
+     */
+    public void normalize(int[] values, boolean buyer, double[] normalized) {
+        int sign = buyer ? 1 : -1;
+        int offset = buyer ? -vMin : vMax;
+        for (int u = 0; u < units; u++) {
+            normalized[u] = sign * values[u] + offset;
+        }
+    }
+
+    /**
+     * The payoff less coeffs . (normalized - avgs), subtracting one unit at a
+     * time in order.
+     */
+    public double reduce(double payoff, double[] coeffs, double[] normalized, double[] avgs) {
+        for (int u = 0; u < units; u++) {
+            payoff -= coeffs[u] * (normalized[u] - avgs[u]);
+        }
+        return payoff;
+    }
+}
@@ -0,0 +1,124 @@
+package sim.cda;
+
+import java.io.File;
+
+/**
+ * Brings the output of every stage up to date with a samples directory that
+ * has grown since the last run. The running sums are kept in a PipelineState
+ * file; only the samples it has not seen yet are read, and the average unit
+ * values, average payoffs, coefficients, payoff matrix and variance reduction
+ * ratio are then derived from the sums. The output files are rewritten on
+ * every run. They are the files CalculateAllStages writes for the whole
+ * directory, up to rounding in the last digits.
+ *
+ * @author Augie
+ */
+public class UpdateAllStages {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 7) {
+            throw new Exception("Expecting 7 args: [samples directory] [state file] [avg unit vals output file] [avg payoffs output file] [coefficients output file] [output json file] [output plain file]");
+        }
+
+        // The market the samples come from
+        MarketConfig market = MarketConfig.get();
+        int argCount = 0;
+
+        File inDir = new File(args[argCount++]);
+        if (!inDir.isDirectory()) {
+            throw new Exception("Input directory does not exist.");
+        }
+
+        File stateFile = new File(args[argCount++]);
+        File unitValsFile = new File(args[argCount++]);
+        File avgPayoffsFile = new File(args[argCount++]);
+        File coeffFile = new File(args[argCount++]);
+        File outFile = new File(args[argCount++]);
+        File outPlainFile = new File(args[argCount++]);
+
+        // Start from the sums of the last run
+        PipelineState state;
+        if (stateFile.exists()) {
+            state = PipelineState.read(stateFile);
+            if (!state.matches(market.agents(), market.agentsPerPlayer(), market.reps(), market.units(), market.vMin(), market.vMax())) {
+                throw new Exception("State file was written with different game parameters.");
+            }
+        } else {
+            state = new PipelineState(market.agents(), market.agentsPerPlayer(), market.reps(), market.units(), market.vMin(), market.vMax());
+        }
+
+        // Fold in the samples that have not been seen yet
+        int added = 0;
+        SampleReader reader = new SampleReader();
+        SampleData sample = new SampleData();
+        for (File sampleFile : new SampleDirectory(inDir).files()) {
+            // The XML and its binary cache are the same sample
+            String sampleName = sampleFile.getName().substring(0, sampleFile.getName().lastIndexOf('.'));
+            if (state.contains(sampleName)) {
+                continue;
+            }
+            SampleDirectory.read(sampleFile, reader, sample);
+            state.add(sampleName, sample);
+            added++;
+        }
+        System.out.println("Added " + added + " new samples");
+        if (state.size() == 0) {
+            throw new Exception("No samples.");
+        }
+        int[] profiles = state.profiles();
+
+        // Average normalized unit values
+        double[] avgNormalizedUnitValue = state.avgNormalizedUnitValues();
+
+        // Average payoff per strategy per profile, with the std devs of the scores
+        double[][] strategyProfileAvgs = new double[ProfileKey.COUNT][];
+        double[][] strategyProfileStdDevs = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            strategyProfileAvgs[p] = state.payoffAverages(p);
+            strategyProfileStdDevs[p] = state.scoreStdDevs(p, strategyProfileAvgs[p]);
+        }
+
+        // Coefficients
+        ControlVariateSolver solver = new ControlVariateSolver(state.SigmaData(avgNormalizedUnitValue));
+        double[] sigmaData = state.sigmaData(strategyProfileAvgs, avgNormalizedUnitValue);
+        double[] conVarCoeffs = solver.solve(sigmaData);
+
+        // Reduced-variance payoffs
+        double[][] redVarStrategyProfileAvgs = new double[ProfileKey.COUNT][];
+        double[][] redVarStrategyProfileStdDevs = new double[ProfileKey.COUNT][];
+        for (int p : profiles) {
+            redVarStrategyProfileAvgs[p] = state.redVarAverages(p, strategyProfileAvgs[p], conVarCoeffs, avgNormalizedUnitValue);
+            redVarStrategyProfileStdDevs[p] = state.redVarStdDevs(p, conVarCoeffs);
+        }
+
+        // Variance reduction ratio
+        double K = state.agentCount();
+        double numeratorVal = solver.quadraticForm(sigmaData);
+        double var = state.payoffVariance();
+        double varRedRatio = ((K - 2) / (K - market.units() - 2)) * (1 - (numeratorVal / var));
+        System.out.println(varRedRatio);
+
+        // Write out the average unit values
+        IntermediateFormat.writeUnitValues(unitValsFile, avgNormalizedUnitValue);
+
+        // Write out the average payoffs
+        IntermediateFormat.writePayoffs(avgPayoffsFile, new PayoffTable(profiles, state.sampleCounts(), strategyProfileAvgs, strategyProfileStdDevs));
+
+        // Write out the coefficients
+        IntermediateFormat.writeCoefficients(coeffFile, new ControlVariateCoefficients(conVarCoeffs));
+
+        // Write out the game JSON
+        CalculateAllStages.writeGameJson(outFile, profiles, state.sampleCounts(), redVarStrategyProfileAvgs, redVarStrategyProfileStdDevs);
+
+        // Write out the plain reduced-variance results: unreduced averages
+        //  with reduced std devs
+        IntermediateFormat.writePayoffs(outPlainFile, new PayoffTable(profiles, state.sampleCounts(), strategyProfileAvgs, redVarStrategyProfileStdDevs));
+
+        // Save the sums last, to the side so an interrupted run keeps the old state
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        state.write(tempFile);
+        if (!tempFile.renameTo(stateFile)) {
+            throw new Exception("Could not move " + tempFile + " to " + stateFile);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package sim.cda;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * CovarianceAccumulator with the rank-k updates done on SIMD lanes, as wide
+ * as the hardware's preferred vectors. Rows are padded with zeros to a whole
+ * number of vectors, so no lane masks are needed, and four rows of x x' are
+ * summed at once to keep four independent adds in flight. Each lane does the
+ * same multiply, then compensated add, in the same agent order as the scalar
+ * version (no fused multiply-add), so the sums are identical. Needs
+ * --add-modules jdk.incubator.vector to compile and run; use
+ * CovarianceAccumulator.create() rather than this class directly.
+ *
+ * @author Augie
+ */
+public class VectorCovarianceAccumulator extends CovarianceAccumulator {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public VectorCovarianceAccumulator(int units) {
+        this(units, BLOCK);
+    }
+
+    public VectorCovarianceAccumulator(int units, int block) {
+        super(units, (units + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length(), block);
+    }
+
+    public int vectorBitSize() {
+        return SPECIES.vectorBitSize();
+    }
+
+    protected void flush() {
+        for (int start = 0; start < pending; start += PANEL) {
+            int end = Math.min(pending, start + PANEL);
+            for (int r = 0; r < stride; r += SPECIES.length()) {
+                int q = 0;
+                for (; q + 4 <= units; q += 4) {
+                    int i0 = q * stride + r, i1 = i0 + stride, i2 = i1 + stride, i3 = i2 + stride;
+                    DoubleVector sum0 = DoubleVector.fromArray(SPECIES, outerProducts, i0);
+                    DoubleVector sum1 = DoubleVector.fromArray(SPECIES, outerProducts, i1);
+                    DoubleVector sum2 = DoubleVector.fromArray(SPECIES, outerProducts, i2);
+                    DoubleVector sum3 = DoubleVector.fromArray(SPECIES, outerProducts, i3);
+                    DoubleVector c0 = DoubleVector.fromArray(SPECIES, outerCompensation, i0);
+                    DoubleVector c1 = DoubleVector.fromArray(SPECIES, outerCompensation, i1);
+                    DoubleVector c2 = DoubleVector.fromArray(SPECIES, outerCompensation, i2);
+                    DoubleVector c3 = DoubleVector.fromArray(SPECIES, outerCompensation, i3);
+                    for (int k = start; k < end; k++) {
+                        int row = k * stride;
+                        DoubleVector x = DoubleVector.fromArray(SPECIES, xBlock, row + r);
+                        DoubleVector term0 = x.mul(xBlock[row + q]).sub(c0);
+                        DoubleVector term1 = x.mul(xBlock[row + q + 1]).sub(c1);
+                        DoubleVector term2 = x.mul(xBlock[row + q + 2]).sub(c2);
+                        DoubleVector term3 = x.mul(xBlock[row + q + 3]).sub(c3);
+                        DoubleVector next0 = sum0.add(term0);
+                        DoubleVector next1 = sum1.add(term1);
+                        DoubleVector next2 = sum2.add(term2);
+                        DoubleVector next3 = sum3.add(term3);
+                        c0 = next0.sub(sum0).sub(term0);
+                        c1 = next1.sub(sum1).sub(term1);
+                        c2 = next2.sub(sum2).sub(term2);
+                        c3 = next3.sub(sum3).sub(term3);
+                        sum0 = next0;
+                        sum1 = next1;
+                        sum2 = next2;
+                        sum3 = next3;
+                    }
+                    sum0.intoArray(outerProducts, i0);
+                    sum1.intoArray(outerProducts, i1);
+                    sum2.intoArray(outerProducts, i2);
+                    sum3.intoArray(outerProducts, i3);
+                    c0.intoArray(outerCompensation, i0);
+                    c1.intoArray(outerCompensation, i1);
+                    c2.intoArray(outerCompensation, i2);
+                    c3.intoArray(outerCompensation, i3);
+                }
+                for (; q < units; q++) {
+                    int i = q * stride + r;
+                    DoubleVector sum = DoubleVector.fromArray(SPECIES, outerProducts, i);
+                    DoubleVector c = DoubleVector.fromArray(SPECIES, outerCompensation, i);
+                    for (int k = start; k < end; k++) {
+                        int row = k * stride;
+                        DoubleVector term = DoubleVector.fromArray(SPECIES, xBlock, row + r).mul(xBlock[row + q]).sub(c);
+                        DoubleVector next = sum.add(term);
+                        c = next.sub(sum).sub(term);
+                        sum = next;
+                    }
+                    sum.intoArray(outerProducts, i);
+                    c.intoArray(outerCompensation, i);
+                }
+                DoubleVector sum = DoubleVector.fromArray(SPECIES, crossProducts, r);
+                DoubleVector c = DoubleVector.fromArray(SPECIES, crossCompensation, r);
+                for (int k = start; k < end; k++) {
+                    DoubleVector term = DoubleVector.fromArray(SPECIES, yBlock, k * stride + r).mul(wBlock[k]).sub(c);
+                    DoubleVector next = sum.add(term);
+                    c = next.sub(sum).sub(term);
+                    sum = next;
+                }
+                sum.intoArray(crossProducts, r);
+                c.intoArray(crossCompensation, r);
+            }
+        }
+        pending = 0;
+    }
+}